@@ -1,25 +1,20 @@
 package client;
 
-import client.commands.*;
 import client.domain.Account;
 import client.domain.Server;
 import client.domain.Transaction;
-import com.mashape.unirest.http.JsonNode;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.*;
 import java.security.cert.CertificateException;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
-import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import static client.ClientCrypto.generateCertificate;
-import static client.ClientCrypto.prettyPrintJsonString;
 
 @SuppressWarnings("Duplicates")
 public class Client {
@@ -28,19 +23,8 @@ public class Client {
 
     private static String publicKeyHash = null;
 
-    private static List<Server> servers;
-    private static int majority;
-
-    private static int opid;
-    private static int responses;
-    private static Map<String, Integer> errors;
-    private static List<Object> validResponses;
-    private static List<JsonNode> jsonResponses; // Used to writeback
-
-    private static List<Transaction> transactionList;
-    private static Account account;
-
-    private static final Object syncObject = new Object();
+    private static VerifiedSignatures verifiedSignatures = new VerifiedSignatures(null);
+    private static HDSClient hdsClient;
 
     // Verbose debug mode will make ugly threaded prints
     public enum debugMode {NONE, NORMAL, VERBOSE}
@@ -90,7 +74,6 @@ public class Client {
         }
 
         fetchServers();
-        opid = 0;
         choice = "";
         while (!choice.equals("0")) {
             System.out.println("Available operations:");
@@ -123,7 +106,7 @@ public class Client {
                     if (!check()) {
                         break;
                     }
-                    if (account.getPendingTransactions().isEmpty()){
+                    if (hdsClient.getAccount().getPendingTransactions().isEmpty()){
                         break;
                     }
                     System.out.print("Transaction ID: ");
@@ -189,6 +172,7 @@ public class Client {
         }
         digester.update(publicKey.getEncoded());
         publicKeyHash = Base64.getEncoder().encodeToString(digester.digest());
+        verifiedSignatures = new VerifiedSignatures(Paths.get("keys", keyname + ".verified"));
     }
 
     @SuppressWarnings("Duplicates")
@@ -261,324 +245,43 @@ public class Client {
         }
         digester.update(publicKey.getEncoded());
         publicKeyHash = Base64.getEncoder().encodeToString(digester.digest());
+        verifiedSignatures = new VerifiedSignatures(Paths.get("keys", keyname + ".verified"));
     }
 
     private static void fetchServers(){
-        servers = new ArrayList<>();
-        File dir = new File("servers");
-        File[] directoryListing = dir.listFiles();
-        if (directoryListing != null) {
-            for (File file : directoryListing) {
-                try {
-                    List<String> announcement = Files.readAllLines(file.toPath());
-                    byte[] pubkeyBytes = Base64.getDecoder().decode(announcement.get(2));
-                    X509EncodedKeySpec pubSpec = new X509EncodedKeySpec(pubkeyBytes);
-                    KeyFactory factory = KeyFactory.getInstance("EC", "SunEC");
-                    PublicKey serverKey = factory.generatePublic(pubSpec);
-                    servers.add(new Server(announcement.get(0), announcement.get(1), serverKey));
-                } catch (IOException | NoSuchAlgorithmException | InvalidKeySpecException | NoSuchProviderException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+        List<Server> servers = HDSClient.loadServers(new File("servers"));
         System.out.println("Connected to " + servers.size() + " servers");
-        int f = (servers.size()-1)/3;
-        majority = 2*f+1;
+        hdsClient = new HDSClient(servers, new KeyPair(publicKey, privateKey), verifiedSignatures);
         if (debug == debugMode.NORMAL) {
-            System.out.println("[DEBUG] Majority is " + majority);
+            System.out.println("[DEBUG] Majority is " + hdsClient.getMajority());
         }
     }
 
     public static void register() {
-        opid += 1;
-        responses = 0;
-        errors = new HashMap<>();
-        validResponses = new LinkedList<>();
-        String timestamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
-        String signature = Register.sign(publicKey, timestamp, privateKey);
-
-        if (debug == debugMode.NORMAL) {
-            System.out.println("--- Sending ---");
-            System.out.println("Public key: " + publicKeyHash);
-            System.out.println("Timestamp: " + timestamp);
-            System.out.println("Sig: " + signature);
-            System.out.println("---------------");
-        }
-
-        for (Server server : servers) {
-            Thread t = new Thread(new Register(server, publicKey, timestamp, signature, opid));
-            t.start();
-        }
-
-        synchronized (syncObject) {
-            try {
-                syncObject.wait();
-            } catch (InterruptedException e) {
-                System.out.println("[DEBUG] Thread interrupted");
-            }
-        }
-
-        String response = "[ERROR] Couldn't get any response. This shouldn't happen.";
-        synchronized (Client.class) {
-            if (debug == debugMode.NORMAL) {
-                System.out.println("[DEBUG] Received majority responses");
-                if (validResponses.isEmpty()) {
-                    for (String error : errors.keySet()) {
-                        System.out.println("[DEBUG] " + errors.get(error) + " servers returned error:\n[DEBUG] " + error);
-                    }
-                }
-            }
-
-            long max = 0;
-            Map<String, Long> counts =
-                    validResponses.stream().collect(Collectors.groupingBy(e -> (String) e, Collectors.counting()));
-            for (String r : counts.keySet()) {
-                if (counts.get(r) > max) {
-                    max = counts.get(r);
-                    response = r;
-                }
-            }
-            for (String e : errors.keySet()) {
-                if (errors.get(e) >= max) {
-                    max = errors.get(e);
-                    response = "[ERROR] " + e;
-                }
-            }
-        }
-
-        System.out.println(response);
-    }
-
-    public static synchronized void callbackRegister(Server server, String response, int copid){
-        if (copid != opid) {
-            return;
-        }
-        responses = responses+1;
-        validResponses.add(response);
-        if (debug == debugMode.VERBOSE) {
-            System.out.println("[DEBUG] Received " + responses + " responses so far");
-        }
-        if (responses >= majority){
-            synchronized (syncObject) {
-                syncObject.notify();
-            }
+        String response = await(hdsClient.register());
+        if (response != null) {
+            System.out.println(response);
         }
     }
 
     public static void send(String dest, String amount){
-        opid += 1;
-        responses = 0;
-        errors = new HashMap<>();
-        validResponses = new LinkedList<>();
-        String timestamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
-        String previousTransaction = "000000";
-        if (transactionList != null && !transactionList.isEmpty()){
-            previousTransaction = transactionList.get(transactionList.size()-1).getTransactionHash();
-        }
-        String signature = Send.sign(publicKeyHash, dest, amount, previousTransaction, timestamp, privateKey);
-
-        if (debug == debugMode.NORMAL) {
-            System.out.println("--- Sending ---");
-            System.out.println("Source hash: " + publicKeyHash);
-            System.out.println("Destination hash: " + dest);
-            System.out.println("Amount: " + amount);
-            System.out.println("Previous transaction: " + previousTransaction);
-            System.out.println("Timestamp: " + timestamp);
-            System.out.println("Sig: " + signature);
-            System.out.println("---------------");
-        }
-
-        for (Server server:servers){
-            Thread t = new Thread(new Send(server, publicKeyHash, dest, amount, previousTransaction, timestamp, signature, opid));
-            t.start();
-        }
-
-        synchronized(syncObject) {
-            try {
-                syncObject.wait();
-            } catch (InterruptedException e) {
-                System.out.println("[DEBUG] Thread interrupted");
-            }
-        }
-        String response = "[ERROR] Couldn't get any response. This shouldn't happen.";
-        synchronized (Client.class) {
-            if (debug == debugMode.NORMAL) {
-                System.out.println("[DEBUG] Received majority responses");
-
-                if (validResponses.isEmpty()) {
-                    for (String error : errors.keySet()) {
-                        System.out.println("[DEBUG] " + errors.get(error) + " servers returned error:\n[DEBUG] " + error);
-                    }
-                }
-            }
-
-            long max = 0;
-            Map<String, Long> counts =
-                    validResponses.stream().collect(Collectors.groupingBy(e -> (String) e, Collectors.counting()));
-            for (String r : counts.keySet()) {
-                if (counts.get(r) > max) {
-                    max = counts.get(r);
-                    response = r;
-                }
-            }
-            for (String e : errors.keySet()) {
-                if (errors.get(e) >= max) {
-                    max = errors.get(e);
-                    response = "[ERROR] " + e;
-                }
-            }
-        }
-        System.out.println(response);
-    }
-
-    public static synchronized void callbackSend(Server server, String response, int copid){
-        if (copid != opid) {
-            return;
-        }
-        responses = responses+1;
-        validResponses.add(response);
-        if (debug == debugMode.VERBOSE) {
-            System.out.println("[DEBUG] Received " + responses + " responses so far");
-        }
-        if (responses >= majority){
-            synchronized (syncObject) {
-                syncObject.notify();
-            }
+        String response = await(hdsClient.send(dest, amount));
+        if (response != null) {
+            System.out.println(response);
         }
     }
 
     public static void receive(String transactionID){
-        opid += 1;
-        responses = 0;
-        errors = new HashMap<>();
-        validResponses = new LinkedList<>();
-        String timestamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
-        String transactionSig = account.getPendingTransactions().get(transactionID).getSignature();
-        if (transactionSig == null) {
-            System.out.println("[ERROR] No such transaction ID");
-            return;
-        }
-        String previousTransaction = "000000";
-        if (transactionList != null && !transactionList.isEmpty()){
-            previousTransaction = transactionList.get(transactionList.size()-1).getTransactionHash();
-        }
-        String signature = Receive.sign(transactionID, transactionSig, previousTransaction, timestamp, privateKey);
-
-        if (debug == debugMode.NORMAL) {
-            System.out.println("--- Sending ---");
-            System.out.println("Transaction ID: " + transactionID);
-            System.out.println("Transaction Sig: " + transactionSig);
-            System.out.println("Timestamp: " + timestamp);
-            System.out.println("Sig: " + signature);
-            System.out.println("---------------");
-        }
-
-        for (Server server:servers){
-            Thread t = new Thread(new Receive(server, transactionID, transactionSig, previousTransaction, timestamp, signature, opid));
-            t.start();
-        }
-
-        synchronized(syncObject) {
-            try {
-                syncObject.wait();
-            } catch (InterruptedException e) {
-                System.out.println("[DEBUG] Thread interrupted");
-            }
-        }
-        String response = "[ERROR] Couldn't get any response. This shouldn't happen.";
-        synchronized (Client.class) {
-            if (debug == debugMode.NORMAL) {
-                System.out.println("[DEBUG] Received majority responses");
-
-                if (validResponses.isEmpty()) {
-                    for (String error : errors.keySet()) {
-                        System.out.println("[DEBUG] " + errors.get(error) + " servers returned error:\n[DEBUG] " + error);
-                    }
-                }
-            }
-
-            long max = 0;
-            Map<String, Long> counts =
-                    validResponses.stream().collect(Collectors.groupingBy(e -> (String) e, Collectors.counting()));
-            for (String r : counts.keySet()) {
-                if (counts.get(r) > max) {
-                    max = counts.get(r);
-                    response = r;
-                }
-            }
-            for (String e : errors.keySet()) {
-                if (errors.get(e) >= max) {
-                    max = errors.get(e);
-                    response = "[ERROR] " + e;
-                }
-            }
-        }
-
-        System.out.println(response);
-    }
-
-    public static synchronized void callbackReceive(Server server, String response, int copid){
-        if (copid != opid) {
-            return;
-        }
-        responses = responses+1;
-        validResponses.add(response);
-        if (debug == debugMode.VERBOSE) {
-            System.out.println("[DEBUG] Received " + responses + " responses so far");
-        }
-        if (responses >= majority){
-            synchronized (syncObject) {
-                syncObject.notify();
-            }
+        String response = await(hdsClient.receive(transactionID));
+        if (response != null) {
+            System.out.println(response);
         }
     }
 
     public static boolean check(){
-        opid += 1;
-        responses = 0;
-        errors = new HashMap<>();
-        validResponses = new LinkedList<>();
-        String timestamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
-        if (debug == debugMode.NORMAL) {
-            System.out.println("--- Sending ---");
-            System.out.println("Account Hash: " + publicKeyHash);
-            System.out.println("Timestamp: " + timestamp);
-            System.out.println("---------------");
-        }
-
-        for (Server server:servers){
-            Thread t = new Thread(new Check(server, publicKeyHash,timestamp, opid));
-            t.start();
-        }
-
-        synchronized(syncObject) {
-            try {
-                syncObject.wait();
-            } catch (InterruptedException e) {
-                System.out.println("[DEBUG] Thread interrupted");
-            }
-        }
-        if (debug == debugMode.NORMAL) {
-            System.out.println("[DEBUG] Received majority responses");
-        }
-
-        synchronized (Client.class) {
-            if (validResponses.isEmpty()) {
-                for (String error : errors.keySet()) {
-                    System.out.println(errors.get(error) + " servers returned error:\n" + error);
-                }
-                return false;
-            }
-
-            long max = 0;
-            Map<Account, Long> counts =
-                    validResponses.stream().collect(Collectors.groupingBy(e -> (Account) e, Collectors.counting()));
-            for (Account a : counts.keySet()) {
-                if (counts.get(a) > max) {
-                    max = counts.get(a);
-                    account = a;
-                }
-            }
+        Account account = await(hdsClient.check());
+        if (account == null) {
+            return false;
         }
 
         System.out.println("Balance for " + publicKeyHash + ": " + account.getBalance());
@@ -594,99 +297,16 @@ public class Client {
         return true;
     }
 
-    public static synchronized void callbackCheck(Server server, Account response, int copid){
-        if (copid != opid) {
-            return;
-        }
-        responses = responses+1;
-        validResponses.add(response);
-        if (debug == debugMode.VERBOSE) {
-            System.out.println("[DEBUG] Received " + responses + " responses so far");
-        }
-        if (responses >= majority){
-            synchronized (syncObject) {
-                syncObject.notify();
-            }
-        }
-    }
-
     public static boolean audit(boolean print){
-        opid += 1;
-        responses = 0;
-        errors = new HashMap<>();
-        validResponses = new LinkedList<>();
-        jsonResponses = new LinkedList<>();
-        String timestamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
-        if (debug == debugMode.NORMAL) {
-            System.out.println("--- Sending ---");
-            System.out.println("Account Hash: " + publicKeyHash);
-            System.out.println("Timestamp: " + timestamp);
-            System.out.println("---------------");
-        }
-
-        for (Server server:servers){
-            Thread t = new Thread(new Audit(server, publicKeyHash,timestamp, publicKey, opid));
-            t.start();
-        }
-
-        synchronized(syncObject) {
-            try {
-                syncObject.wait();
-            } catch (InterruptedException e) {
-                System.out.println("[DEBUG] Thread interrupted");
-            }
-        }
-        if (debug == debugMode.NORMAL) {
-            System.out.println("[DEBUG] Received majority responses");
-        }
-        List<Transaction> chosenList = null;
-        JsonNode writebackValue = null;
-        synchronized (Client.class) {
-            if (validResponses.isEmpty()) {
-                for (String error : errors.keySet()) {
-                    System.out.println(errors.get(error) + " servers returned error:\n" + error);
-                }
-                return false;
-            }
-            int maxOps = 0;
-            for (Object response : validResponses) {
-                int index = validResponses.indexOf(response);
-                List<Transaction> l = (List<Transaction>) response;
-                if (l.size() > maxOps) {
-                    maxOps = l.size();
-                    chosenList = l;
-                    writebackValue = jsonResponses.get(index);
-                }
-            }
-        }
-
-        if (debug == debugMode.NORMAL) {
-            System.out.println("[DEBUG] Writing back");
-        }
-        // -------------- Writeback --------------------
-        timestamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
-        opid += 1;
-        responses = 0;
-        errors = new HashMap<>();
-        validResponses = new LinkedList<>();
-        for (Server server:servers){
-            Thread t = new Thread(new Writeback(server, publicKeyHash, writebackValue, timestamp, opid));
-            t.start();
-        }
-
-        synchronized(syncObject) {
-            try {
-                syncObject.wait();
-            } catch (InterruptedException e) {
-                System.out.println("[DEBUG] Thread interrupted");
-            }
+        List<Transaction> chosenList = await(hdsClient.audit());
+        if (chosenList == null) {
+            return false;
         }
         if (debug == debugMode.NORMAL) {
             System.out.println("[DEBUG] Finishing writeback");
         }
-        //----------- End of Writeback -----------------
         if (print) {
-            if (chosenList == null) {
+            if (chosenList.isEmpty()) {
                 System.out.println("No transactions found for " + publicKeyHash);
             } else {
                 System.out.println("Transaction list for " + publicKeyHash);
@@ -696,63 +316,16 @@ public class Client {
                 }
             }
         }
-
-        transactionList = chosenList;
         return true;
     }
 
-    public static synchronized void callbackAudit(Server server, List<Transaction> response, JsonNode json, int copid){
-        if (copid != opid) {
-            return;
-        }
-        responses = responses+1;
-        validResponses.add(response);
-        jsonResponses.add(json);
-        if (debug == debugMode.VERBOSE) {
-            System.out.println("[DEBUG] Added transaction list of size " + response.size());
-            System.out.println("[DEBUG] Received " + responses + " responses so far");
-        }
-        if (responses >= majority){
-            synchronized (syncObject) {
-                syncObject.notify();
-            }
-        }
-    }
-
-    public static synchronized void callbackWriteback(Server server, String response, int copid){
-        if (copid != opid) {
-            return;
-        }
-        responses = responses+1;
-        if (debug == debugMode.VERBOSE) {
-            System.out.println("[DEBUG] Received " + responses + " responses for writeback so far");
-        }
-        if (responses >= majority){
-            synchronized (syncObject) {
-                syncObject.notify();
-            }
-        }
-    }
-
-    public static synchronized void callbackError(Server server, String response, int copid){
-        if (copid != opid) {
-            return;
-        }
-        responses = responses+1;
-        if (errors.containsKey(response)){
-            errors.put(response, errors.get(response)+1);
-        } else {
-            errors.put(response, 1);
-        }
-
-        if (debug == debugMode.VERBOSE) {
-            System.out.println("[DEBUG] Got error: " + response);
-            System.out.println("[DEBUG] Received " + responses + " responses so far");
-        }
-        if (responses >= majority){
-            synchronized (syncObject) {
-                syncObject.notify();
-            }
+    /* Waits for the operation, printing the error the servers agreed on if it failed */
+    private static <T> T await(CompletableFuture<T> operation) {
+        try {
+            return operation.join();
+        } catch (CompletionException e) {
+            System.out.println("[ERROR] " + e.getCause().getMessage());
+            return null;
         }
     }
 }
@@ -10,6 +10,8 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.security.*;
 import java.security.cert.X509Certificate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.Base64;
 import java.util.Date;
 
@@ -49,28 +51,63 @@ public class ClientCrypto {
         return certificate;
     }
 
-    public static Signature createSignature(PrivateKey priv) throws InvalidKeyException {
-        Signature s = null;
+    // Per-thread instances, see HDSCrypto
+    private static final ThreadLocal<Signature> signatures = ThreadLocal.withInitial(() -> newSignature());
+    private static final ThreadLocal<MessageDigest> digesters = ThreadLocal.withInitial(() -> newDigester());
+
+    private static Signature newSignature() {
         try {
-            s = Signature.getInstance("SHA256withECDSA");
+            return Signature.getInstance("SHA256withECDSA");
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
         }
-        s.initSign(priv);
-        return s;
+        return null;
     }
 
-    public static Signature verifySignature(PublicKey pub) throws InvalidKeyException {
-        Signature s = null;
+    private static MessageDigest newDigester() {
         try {
-            s = Signature.getInstance("SHA256withECDSA");
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
         }
+        return null;
+    }
+
+    public static Signature createSignature(PrivateKey priv) throws InvalidKeyException {
+        Signature s = signatures.get();
+        s.initSign(priv);
+        return s;
+    }
+
+    public static Signature verifySignature(PublicKey pub) throws InvalidKeyException {
+        Signature s = signatures.get();
         s.initVerify(pub);
         return s;
     }
 
+    public static String hashToString(byte[] data) {
+        MessageDigest digester = digesters.get();
+        digester.reset();
+        return Base64.getEncoder().encodeToString(digester.digest(data));
+    }
+
+    /* Hash of the parts as if they were one array, the way a Signature sees them */
+    public static String hashToString(byte[][] parts) {
+        MessageDigest digester = digesters.get();
+        digester.reset();
+        for (byte[] part : parts) {
+            digester.update(part);
+        }
+        return Base64.getEncoder().encodeToString(digester.digest());
+    }
+
+    // DateTimeFormatter is immutable, so unlike SimpleDateFormat one instance can be shared
+    private static final DateTimeFormatter timestampFormat = DateTimeFormatter.ofPattern("yyyy.MM.dd.HH.mm.ss");
+
+    public static String timestamp() {
+        return timestampFormat.format(LocalDateTime.now());
+    }
+
     public static boolean checkServerSignature(JsonNode response, String timestamp, PublicKey serverKey){
         byte[] serverSig = null;
         try {
@@ -0,0 +1,313 @@
+package client;
+
+import client.commands.*;
+import client.domain.Account;
+import client.domain.Server;
+import client.domain.Transaction;
+import com.mashape.unirest.http.JsonNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import static client.Client.debug;
+import static client.ClientCrypto.hashToString;
+import static client.ClientCrypto.timestamp;
+
+/*
+ * Client for one account, usable from code. Every operation goes to all servers and returns a future
+ * that completes with the quorum's answer, or exceptionally with the error the quorum agreed on.
+ * send and receive chain onto the transactions seen by the last audit, so operations on one account
+ * go one after the other; separate instances share nothing and can run at the same time.
+ */
+public class HDSClient {
+    private final List<Server> servers;
+    private final int majority;
+    private final PublicKey publicKey;
+    private final PrivateKey privateKey;
+    private final String publicKeyHash;
+    private final VerifiedSignatures verifiedSignatures;
+
+    private volatile List<Transaction> transactionList = new LinkedList<>();
+    private volatile Account account;
+
+    public HDSClient(List<Server> servers, KeyPair keys, VerifiedSignatures verifiedSignatures) {
+        this.servers = servers;
+        this.majority = majorityOf(servers.size());
+        this.publicKey = keys.getPublic();
+        this.privateKey = keys.getPrivate();
+        this.publicKeyHash = hashToString(publicKey.getEncoded());
+        this.verifiedSignatures = verifiedSignatures;
+    }
+
+    /* Tolerates f faulty servers out of 3f+1 */
+    public static int majorityOf(int servers) {
+        int f = (servers-1)/3;
+        return 2*f+1;
+    }
+
+    /* Reads the servers announced in dir, see Application.announceSelf */
+    public static List<Server> loadServers(File dir) {
+        List<Server> servers = new ArrayList<>();
+        File[] directoryListing = dir.listFiles();
+        if (directoryListing != null) {
+            for (File file : directoryListing) {
+                try {
+                    List<String> announcement = Files.readAllLines(file.toPath());
+                    byte[] pubkeyBytes = Base64.getDecoder().decode(announcement.get(2));
+                    X509EncodedKeySpec pubSpec = new X509EncodedKeySpec(pubkeyBytes);
+                    KeyFactory factory = KeyFactory.getInstance("EC", "SunEC");
+                    PublicKey serverKey = factory.generatePublic(pubSpec);
+                    servers.add(new Server(announcement.get(0), announcement.get(1), serverKey));
+                } catch (IOException | NoSuchAlgorithmException | InvalidKeySpecException | NoSuchProviderException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return servers;
+    }
+
+    public static KeyPair generateKeyPair() {
+        KeyPairGenerator keyGen = null;
+        SecureRandom random = null;
+        try {
+            keyGen = KeyPairGenerator.getInstance("EC", "SunEC");
+            random = SecureRandom.getInstance("SHA1PRNG", "SUN");
+        } catch (NoSuchAlgorithmException | NoSuchProviderException e1) {
+            e1.printStackTrace();
+        }
+        keyGen.initialize(224, random);
+        return keyGen.generateKeyPair();
+    }
+
+    public CompletableFuture<String> register() {
+        String timestamp = timestamp();
+        String signature = Register.sign(publicKey, timestamp, privateKey);
+
+        if (debug == Client.debugMode.NORMAL) {
+            System.out.println("--- Sending ---");
+            System.out.println("Public key: " + publicKeyHash);
+            System.out.println("Timestamp: " + timestamp);
+            System.out.println("Sig: " + signature);
+            System.out.println("---------------");
+        }
+
+        return QuorumCall.matching(servers, majority,
+                server -> new Register(server, publicKey, timestamp, signature).call())
+                .thenApply(HDSClient::decide);
+    }
+
+    public CompletableFuture<String> send(String dest, String amount) {
+        String timestamp = timestamp();
+        String previousTransaction = chainHead();
+        String signature = Send.sign(publicKeyHash, dest, amount, previousTransaction, timestamp, privateKey);
+
+        if (debug == Client.debugMode.NORMAL) {
+            System.out.println("--- Sending ---");
+            System.out.println("Source hash: " + publicKeyHash);
+            System.out.println("Destination hash: " + dest);
+            System.out.println("Amount: " + amount);
+            System.out.println("Previous transaction: " + previousTransaction);
+            System.out.println("Timestamp: " + timestamp);
+            System.out.println("Sig: " + signature);
+            System.out.println("---------------");
+        }
+
+        return QuorumCall.matching(servers, majority,
+                server -> new Send(server, publicKeyHash, dest, amount, previousTransaction, timestamp, signature).call())
+                .thenApply(HDSClient::decide);
+    }
+
+    /* Receives one of the pending transactions found by the last check */
+    public CompletableFuture<String> receive(String transactionID) {
+        Transaction pending = account == null ? null : account.getPendingTransactions().get(transactionID);
+        if (pending == null) {
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new QuorumCall.ServerError("No such transaction ID"));
+            return failed;
+        }
+        String timestamp = timestamp();
+        String transactionSig = pending.getSignature();
+        String previousTransaction = chainHead();
+        String signature = Receive.sign(transactionID, transactionSig, previousTransaction, timestamp, privateKey);
+
+        if (debug == Client.debugMode.NORMAL) {
+            System.out.println("--- Sending ---");
+            System.out.println("Transaction ID: " + transactionID);
+            System.out.println("Transaction Sig: " + transactionSig);
+            System.out.println("Timestamp: " + timestamp);
+            System.out.println("Sig: " + signature);
+            System.out.println("---------------");
+        }
+
+        return QuorumCall.matching(servers, majority,
+                server -> new Receive(server, transactionID, transactionSig, previousTransaction, timestamp, signature).call())
+                .thenApply(HDSClient::decide);
+    }
+
+    public CompletableFuture<Account> check() {
+        String timestamp = timestamp();
+        if (debug == Client.debugMode.NORMAL) {
+            System.out.println("--- Sending ---");
+            System.out.println("Account Hash: " + publicKeyHash);
+            System.out.println("Timestamp: " + timestamp);
+            System.out.println("---------------");
+        }
+
+        return QuorumCall.matching(servers, majority,
+                server -> new Check(server, publicKeyHash, timestamp).call())
+                .thenApply(call -> {
+                    Map<Account, Integer> counts = call.getReplyCounts();
+                    if (counts.isEmpty()) {
+                        throw new QuorumCall.ServerError(describeErrors(call));
+                    }
+                    long max = 0;
+                    Account chosen = null;
+                    for (Account a : counts.keySet()) {
+                        if (counts.get(a) > max) {
+                            max = counts.get(a);
+                            chosen = a;
+                        }
+                    }
+                    account = chosen;
+                    return chosen;
+                });
+    }
+
+    /* Reads the longest verified chain any server has, then writes it back to all of them */
+    public CompletableFuture<List<Transaction>> audit() {
+        String timestamp = timestamp();
+        if (debug == Client.debugMode.NORMAL) {
+            System.out.println("--- Sending ---");
+            System.out.println("Account Hash: " + publicKeyHash);
+            System.out.println("Timestamp: " + timestamp);
+            System.out.println("---------------");
+        }
+
+        // Only ask for what came after the last transaction we already verified
+        List<Transaction> audited = transactionList;
+        int fromSequence = audited.size();
+        String knownHash = audited.isEmpty() ? null : audited.get(fromSequence - 1).getTransactionHash();
+        return QuorumCall.responses(servers, majority,
+                server -> new Audit(server, publicKeyHash, timestamp, publicKey, fromSequence, knownHash, verifiedSignatures).call())
+                .thenCompose(call -> {
+                    List<Audit.Result> replies = call.getReplies();
+                    if (replies.isEmpty()) {
+                        throw new QuorumCall.ServerError(describeErrors(call));
+                    }
+                    List<Transaction> chosenList = new LinkedList<>();
+                    JsonNode writebackValue = null;
+                    for (Audit.Result reply : replies) {
+                        List<Transaction> l = reply.getTransactions();
+                        if (reply.getFromSequence() > 0) {
+                            // The server continued from our chain head, so the reply is only the new suffix
+                            l = new LinkedList<>(audited);
+                            l.addAll(reply.getTransactions());
+                        }
+                        if (debug == Client.debugMode.VERBOSE) {
+                            System.out.println("[DEBUG] Added transaction list of size " + l.size());
+                        }
+                        if (writebackValue == null || l.size() > chosenList.size()) {
+                            chosenList = l;
+                            writebackValue = reply.getJson();
+                        }
+                    }
+
+                    if (debug == Client.debugMode.NORMAL) {
+                        System.out.println("[DEBUG] Writing back");
+                    }
+                    String writebackTimestamp = timestamp();
+                    JsonNode writeback = writebackValue;
+                    List<Transaction> chosen = chosenList;
+                    return QuorumCall.responses(servers, majority,
+                            server -> new Writeback(server, publicKeyHash, writeback, writebackTimestamp).call())
+                            .thenApply(writebackCall -> {
+                                transactionList = chosen;
+                                return chosen;
+                            });
+                });
+    }
+
+    private String chainHead() {
+        List<Transaction> transactions = transactionList;
+        return transactions.isEmpty() ? "000000" : transactions.get(transactions.size()-1).getTransactionHash();
+    }
+
+    /* The reply most servers agreed on, unless at least as many servers returned the same error */
+    private static String decide(QuorumCall<String> call) {
+        Map<String, Integer> errors = call.getErrors();
+        if (debug == Client.debugMode.NORMAL) {
+            System.out.println("[DEBUG] Received majority responses");
+            if (call.getReplies().isEmpty()) {
+                for (String error : errors.keySet()) {
+                    System.out.println("[DEBUG] " + errors.get(error) + " servers returned error:\n[DEBUG] " + error);
+                }
+            }
+        }
+
+        String response = null;
+        String error = "Couldn't get any response";
+        long max = 0;
+        Map<String, Integer> counts = call.getReplyCounts();
+        for (String r : counts.keySet()) {
+            if (counts.get(r) > max) {
+                max = counts.get(r);
+                response = r;
+            }
+        }
+        for (String e : errors.keySet()) {
+            if (errors.get(e) >= max) {
+                max = errors.get(e);
+                response = null;
+                error = e;
+            }
+        }
+        if (response == null) {
+            throw new QuorumCall.ServerError(error);
+        }
+        return response;
+    }
+
+    private static String describeErrors(QuorumCall<?> call) {
+        StringBuilder description = new StringBuilder();
+        Map<String, Integer> errors = call.getErrors();
+        for (String error : errors.keySet()) {
+            if (description.length() > 0) {
+                description.append("\n");
+            }
+            description.append(errors.get(error)).append(" servers returned error:\n").append(error);
+        }
+        return description.length() == 0 ? "Couldn't get any response" : description.toString();
+    }
+
+    public String getPublicKeyHash() {
+        return publicKeyHash;
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    /* The account as of the last check */
+    public Account getAccount() {
+        return account;
+    }
+
+    /* The chain as of the last audit */
+    public List<Transaction> getTransactionList() {
+        return transactionList;
+    }
+
+    public int getServerCount() {
+        return servers.size();
+    }
+
+    public int getMajority() {
+        return majority;
+    }
+}
@@ -0,0 +1,128 @@
+package client;
+
+import client.domain.Account;
+import client.domain.Server;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/*
+ * Drives a running cluster with many accounts at once and reports throughput and latency.
+ * Start the servers first (each announces itself in servers/), then run with:
+ *   mvn exec:java@load -Dload.accounts=16 -Dload.seconds=30
+ * Every account registers, then loops on audit, check, and either receives its first pending
+ * transaction or sends 1 coin to a random other account. Accounts run concurrently, the
+ * operations of each account run one after the other since they extend the same chain.
+ */
+public class LoadGenerator {
+    private final List<HDSClient> accounts = new ArrayList<>();
+    private final Map<String, List<Long>> latencies = new ConcurrentHashMap<>();
+    private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+    private volatile long deadline;
+
+    public LoadGenerator(List<Server> servers, int accountCount) {
+        for (int i = 0; i < accountCount; i++) {
+            accounts.add(new HDSClient(servers, HDSClient.generateKeyPair(), new VerifiedSignatures(null)));
+        }
+    }
+
+    public static void main(String[] args) {
+        int accountCount = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        Client.debug = Client.debugMode.NONE;
+
+        List<Server> servers = HDSClient.loadServers(new File("servers"));
+        if (servers.isEmpty()) {
+            System.out.println("No servers announced in servers/, start some server.Application instances first");
+            return;
+        }
+        System.out.println("Running " + accountCount + " accounts against " + servers.size() + " servers for " + seconds + "s");
+        LoadGenerator generator = new LoadGenerator(servers, accountCount);
+        generator.run(TimeUnit.SECONDS.toMillis(seconds));
+        System.exit(0);
+    }
+
+    public void run(long durationMillis) {
+        List<CompletableFuture<String>> registrations = new ArrayList<>();
+        for (HDSClient account : accounts) {
+            registrations.add(timed("register", account::register));
+        }
+        CompletableFuture.allOf(registrations.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+
+        long start = System.nanoTime();
+        deadline = System.currentTimeMillis() + durationMillis;
+        List<CompletableFuture<Void>> loops = new ArrayList<>();
+        for (HDSClient account : accounts) {
+            loops.add(loop(account));
+        }
+        CompletableFuture.allOf(loops.toArray(new CompletableFuture<?>[0])).join();
+        report((System.nanoTime() - start) / 1e9);
+    }
+
+    private CompletableFuture<Void> loop(HDSClient account) {
+        if (System.currentTimeMillis() >= deadline) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return timed("audit", account::audit)
+                .thenCompose(transactions -> timed("check", account::check))
+                .thenCompose(checked -> {
+                    Account state = account.getAccount();
+                    if (!state.getPendingTransactions().isEmpty()) {
+                        String id = state.getPendingTransactions().keySet().iterator().next();
+                        return timed("receive", () -> account.receive(id));
+                    }
+                    HDSClient dest = accounts.get(ThreadLocalRandom.current().nextInt(accounts.size()));
+                    if (dest == account || state.getBalance() < 1) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return timed("send", () -> account.send(dest.getPublicKeyHash(), "1"));
+                })
+                // A failed operation is counted and the account just carries on with the next round
+                .handle((result, error) -> null)
+                .thenCompose(ignored -> loop(account));
+    }
+
+    private <T> CompletableFuture<T> timed(String operation, Supplier<CompletableFuture<T>> call) {
+        long start = System.nanoTime();
+        return call.get().whenComplete((result, error) -> {
+            if (error == null) {
+                latencies.computeIfAbsent(operation, k -> Collections.synchronizedList(new ArrayList<>())).add(System.nanoTime() - start);
+            } else {
+                failures.merge(operation, 1, Integer::sum);
+            }
+        });
+    }
+
+    private void report(double elapsedSeconds) {
+        long total = 0;
+        System.out.println(String.format("%-10s %8s %8s %8s %8s %8s %8s", "operation", "ok", "failed", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        for (String operation : new TreeSet<>(latencies.keySet())) {
+            List<Long> samples;
+            synchronized (latencies.get(operation)) {
+                samples = new ArrayList<>(latencies.get(operation));
+            }
+            Collections.sort(samples);
+            if (!operation.equals("register")) {
+                total += samples.size();
+            }
+            System.out.println(String.format("%-10s %8d %8d %8.1f %8.1f %8.1f %8.1f", operation, samples.size(), failures.getOrDefault(operation, 0),
+                    percentile(samples, 0.50), percentile(samples, 0.90), percentile(samples, 0.99), percentile(samples, 1.0)));
+        }
+        for (String operation : failures.keySet()) {
+            if (!latencies.containsKey(operation)) {
+                System.out.println(String.format("%-10s %8d %8d", operation, 0, failures.get(operation)));
+            }
+        }
+        System.out.println(String.format("Throughput: %.1f operations/s over %.1fs", total / elapsedSeconds, elapsedSeconds));
+    }
+
+    private static double percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+}
@@ -0,0 +1,208 @@
+package client;
+
+import client.domain.Server;
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.JsonNode;
+import com.mashape.unirest.http.options.Option;
+import com.mashape.unirest.http.options.Options;
+import com.mashape.unirest.request.BaseRequest;
+import com.mashape.unirest.request.HttpRequest;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/*
+ * Sends one request to every server and completes as soon as enough of them have answered.
+ * Requests go out asynchronously over each server's keep-alive connections, and the replies are
+ * checked on a small bounded pool, so many operations can be in flight without a thread per server
+ * per operation.
+ * A reply that fails, either in transport or because the server refused it, counts as an error
+ * under its message, so servers that refuse an operation for the same reason agree with each other.
+ * Servers that haven't answered by the timeout are counted as timed out, so a slow or dead server
+ * never leaves an operation waiting.
+ */
+public class QuorumCall<T> {
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Integer.getInteger("hds.client.threads", Math.max(2, Runtime.getRuntime().availableProcessors())), runnable -> {
+                Thread thread = new Thread(runnable, "hds-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hds-client-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final long TIMEOUT_MILLIS = Long.getLong("hds.client.timeoutMillis", 10 * 1000L);
+
+    private final int servers;
+    private final int majority;
+    private final boolean matching;
+    private final CompletableFuture<QuorumCall<T>> done = new CompletableFuture<>();
+
+    private int received;
+    private final List<T> replies = new ArrayList<>();
+    private final Map<T, Integer> replyCounts = new HashMap<>();
+    private final Map<String, Integer> errors = new HashMap<>();
+
+    private QuorumCall(int servers, int majority, boolean matching) {
+        this.servers = servers;
+        this.majority = majority;
+        this.matching = matching;
+    }
+
+    /* Completes once majority servers returned the same reply or the same error, or every server answered */
+    public static <T> CompletableFuture<QuorumCall<T>> matching(List<Server> servers, int majority, Function<Server, CompletableFuture<T>> request) {
+        return matching(servers, majority, TIMEOUT_MILLIS, request);
+    }
+
+    public static <T> CompletableFuture<QuorumCall<T>> matching(List<Server> servers, int majority, long timeoutMillis, Function<Server, CompletableFuture<T>> request) {
+        return start(new QuorumCall<>(servers.size(), majority, true), servers, timeoutMillis, request);
+    }
+
+    /* Completes once majority servers answered, whatever they answered */
+    public static <T> CompletableFuture<QuorumCall<T>> responses(List<Server> servers, int majority, Function<Server, CompletableFuture<T>> request) {
+        return responses(servers, majority, TIMEOUT_MILLIS, request);
+    }
+
+    public static <T> CompletableFuture<QuorumCall<T>> responses(List<Server> servers, int majority, long timeoutMillis, Function<Server, CompletableFuture<T>> request) {
+        return start(new QuorumCall<>(servers.size(), majority, false), servers, timeoutMillis, request);
+    }
+
+    private static <T> CompletableFuture<QuorumCall<T>> start(QuorumCall<T> call, List<Server> servers, long timeoutMillis, Function<Server, CompletableFuture<T>> request) {
+        if (servers.isEmpty()) {
+            call.done.complete(call);
+            return call.done;
+        }
+        ScheduledFuture<?> timeout = timer.schedule(() -> call.expire(timeoutMillis), timeoutMillis, TimeUnit.MILLISECONDS);
+        call.done.whenComplete((result, error) -> timeout.cancel(false));
+        for (Server server : servers) {
+            CompletableFuture<T> reply;
+            try {
+                reply = request.apply(server);
+            } catch (RuntimeException e) {
+                reply = new CompletableFuture<>();
+                reply.completeExceptionally(e);
+            }
+            reply.whenComplete(call::record);
+        }
+        return call.done;
+    }
+
+    private synchronized void record(T reply, Throwable error) {
+        // Later replies are dropped so the result doesn't change under whoever is reading it
+        if (done.isDone()) {
+            return;
+        }
+        received++;
+        int agreeing;
+        if (error == null) {
+            replies.add(reply);
+            agreeing = replyCounts.merge(reply, 1, Integer::sum);
+        } else {
+            agreeing = errors.merge(messageOf(error), 1, Integer::sum);
+        }
+        if (Client.debug == Client.debugMode.VERBOSE) {
+            System.out.println("[DEBUG] Received " + received + " responses so far");
+        }
+        if ((matching ? agreeing : received) >= majority || received >= servers) {
+            done.complete(this);
+        }
+    }
+
+    private synchronized void expire(long timeoutMillis) {
+        if (done.isDone()) {
+            return;
+        }
+        errors.merge("Timed out after " + timeoutMillis + "ms", servers - received, Integer::sum);
+        done.complete(this);
+    }
+
+    private static String messageOf(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error.getMessage();
+    }
+
+    public synchronized List<T> getReplies() {
+        return new ArrayList<>(replies);
+    }
+
+    public synchronized Map<T, Integer> getReplyCounts() {
+        return new HashMap<>(replyCounts);
+    }
+
+    public synchronized Map<String, Integer> getErrors() {
+        return new HashMap<>(errors);
+    }
+
+    public static Executor executor() {
+        return executor;
+    }
+
+    /*
+     * Posts the request over the server's pooled connections, with its headers, Unirest's default headers it
+     * doesn't set itself, and its body. The future completes with the response or the transport error.
+     */
+    public static CompletableFuture<HttpResponse<JsonNode>> post(Server server, BaseRequest request) {
+        HttpRequest unirestRequest = request.getHttpRequest();
+        HttpPost post = new HttpPost(unirestRequest.getUrl());
+        Map<String, List<String>> headers = unirestRequest.getHeaders();
+        Object defaults = Options.getOption(Option.DEFAULT_HEADERS);
+        if (defaults instanceof Map) {
+            for (Map.Entry<?, ?> header : ((Map<?, ?>) defaults).entrySet()) {
+                // Unirest keeps the request's headers case-insensitively
+                if (!headers.containsKey(String.valueOf(header.getKey()))) {
+                    post.addHeader(String.valueOf(header.getKey()), String.valueOf(header.getValue()));
+                }
+            }
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            for (String value : header.getValue()) {
+                post.addHeader(header.getKey(), value);
+            }
+        }
+        if (unirestRequest.getBody() != null) {
+            post.setEntity(unirestRequest.getBody().getEntity());
+        }
+
+        CompletableFuture<HttpResponse<JsonNode>> response = new CompletableFuture<>();
+        try {
+            server.getHttpClient().execute(post, new FutureCallback<org.apache.http.HttpResponse>() {
+                @Override
+                public void completed(org.apache.http.HttpResponse httpResponse) {
+                    try {
+                        response.complete(new HttpResponse<>(httpResponse, JsonNode.class));
+                    } catch (RuntimeException e) {
+                        response.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    response.completeExceptionally(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    response.completeExceptionally(new CancellationException("Request cancelled"));
+                }
+            });
+        } catch (RuntimeException e) {
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    /* A reply the server sent but that we can't accept, its message is what gets counted */
+    @SuppressWarnings("serial")
+    public static class ServerError extends RuntimeException {
+        public ServerError(String message) {
+            super(message);
+        }
+    }
+}
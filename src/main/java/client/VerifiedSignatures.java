@@ -0,0 +1,110 @@
+package client;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Transactions whose signature we already verified, so an audit only verifies what is new.
+ * Entries are keyed by transactionHash and remember the hash of the signed fields as well:
+ * a server that returns a known signature with different fields still gets it checked.
+ * When given a file, entries are appended to it and read back in the next session.
+ * The audits of every server run at once over mostly the same history, so a signature one of them
+ * is verifying is claimed, and the others wait for its answer instead of verifying it again.
+ */
+public class VerifiedSignatures {
+    private final Map<String, String> verified = new ConcurrentHashMap<>();
+    // Keyed by transactionHash and signed fields hash, completed with whether the signature was valid
+    private final Map<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+    private final Path file;
+
+    public VerifiedSignatures(Path file) {
+        this.file = file;
+        if (file != null && Files.exists(file)) {
+            try {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    String[] entry = line.split(" ");
+                    if (entry.length == 2) {
+                        verified.put(entry[0], entry[1]);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public boolean contains(String transactionHash, String signedHash) {
+        return signedHash.equals(verified.get(transactionHash));
+    }
+
+    /* Takes transactionHash to signed fields hash, and writes the new ones to the file in one go */
+    public void addAll(Map<String, String> entries) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (!entry.getValue().equals(verified.put(entry.getKey(), entry.getValue()))) {
+                lines.add(entry.getKey() + " " + entry.getValue());
+            }
+        }
+        if (file != null && !lines.isEmpty()) {
+            append(lines);
+        }
+    }
+
+    /*
+     * Returns null when the caller is now the one to verify the signature, and must then release it.
+     * Otherwise returns the answer of whoever verified it or is verifying it: on false the caller
+     * claims it again.
+     */
+    public CompletableFuture<Boolean> claim(String transactionHash, String signedHash) {
+        if (contains(transactionHash, signedHash)) {
+            return CompletableFuture.completedFuture(true);
+        }
+        String key = transactionHash + " " + signedHash;
+        CompletableFuture<Boolean> claimed = new CompletableFuture<>();
+        CompletableFuture<Boolean> other = inFlight.putIfAbsent(key, claimed);
+        if (other == null && contains(transactionHash, signedHash)) {
+            // Verified between the two checks
+            inFlight.remove(key, claimed);
+            claimed.complete(true);
+            return claimed;
+        }
+        return other;
+    }
+
+    /* Ends the caller's claims on entries, remembering them if they were all valid, and answers those waiting */
+    public void release(Map<String, String> entries, boolean valid) {
+        if (valid) {
+            addAll(entries);
+        }
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            CompletableFuture<Boolean> claimed = inFlight.remove(entry.getKey() + " " + entry.getValue());
+            if (claimed != null) {
+                claimed.complete(valid);
+            }
+        }
+    }
+
+    public int size() {
+        return verified.size();
+    }
+
+    private synchronized void append(List<String> lines) {
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (String line : lines) {
+                out.write(line);
+                out.newLine();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,119 +1,210 @@
 package client.commands;
 
 import client.Client;
+import client.QuorumCall;
+import client.VerifiedSignatures;
 import client.domain.Server;
 import client.domain.Transaction;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
+import com.mashape.unirest.request.body.MultipartBody;
+import common.BatchVerifier;
 import org.apache.http.conn.HttpHostConnectException;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.math.BigInteger;
-import java.security.InvalidKeyException;
 import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import static client.Client.debug;
 import static client.ClientCrypto.*;
 
 @SuppressWarnings("Duplicates")
-public class Audit implements Runnable {
+public class Audit {
     private Server server;
     private String publicKeyHash;
     private String timestamp;
     private PublicKey publicKey;
-    private int opid;
+    private int fromSequence;
+    private String knownHash;
+    private VerifiedSignatures verified;
 
-    public Audit(Server server, String publicKeyHash, String timestamp, PublicKey publicKey, int opid){
+    public Audit(Server server, String publicKeyHash, String timestamp, PublicKey publicKey, VerifiedSignatures verified){
+        this(server, publicKeyHash, timestamp, publicKey, 0, null, verified);
+    }
+
+    /* Asks only for the transactions after knownHash, the hash of the already verified transaction fromSequence-1 */
+    public Audit(Server server, String publicKeyHash, String timestamp, PublicKey publicKey, int fromSequence, String knownHash, VerifiedSignatures verified){
         this.server = server;
         this.publicKeyHash = publicKeyHash;
         this.timestamp = timestamp;
         this.publicKey = publicKey;
-        this.opid = opid;
+        this.fromSequence = fromSequence;
+        this.knownHash = knownHash;
+        this.verified = verified;
+    }
+
+    /* Every transaction in our chain is signed by us, over the same fields the server checked when it was made */
+    private static byte[][] signedFields(JSONObject transaction) {
+        String previousTransaction = transaction.getString("previousTransaction");
+        String timestamp = transaction.getString("timestamp");
+        if (transaction.getBoolean("receiving")) {
+            // Completes the send with this id and signature
+            String senderTransactionId = transaction.optString("senderTransactionId", "");
+            byte[] senderSig = Base64.getDecoder().decode(transaction.getString("senderSig"));
+            return new byte[][]{senderTransactionId.getBytes(), senderSig, previousTransaction.getBytes(), timestamp.getBytes()};
+        }
+        return new byte[][]{
+                transaction.getJSONObject("from").getString("keyHash").getBytes(),
+                transaction.getJSONObject("to").getString("keyHash").getBytes(),
+                BigInteger.valueOf(transaction.getInt("amount")).toByteArray(),
+                previousTransaction.getBytes(), timestamp.getBytes()};
     }
 
-    @Override
-    public void run() {
+    /* A verified audit reply: the transactions from fromSequence on, and the JSON to write back */
+    public static class Result {
+        private final int fromSequence;
+        private final List<Transaction> transactions;
+        private final JsonNode json;
+
+        Result(int fromSequence, List<Transaction> transactions, JsonNode json) {
+            this.fromSequence = fromSequence;
+            this.transactions = transactions;
+            this.json = json;
+        }
+
+        public int getFromSequence() {
+            return fromSequence;
+        }
+
+        public List<Transaction> getTransactions() {
+            return transactions;
+        }
+
+        public JsonNode getJson() {
+            return json;
+        }
+    }
+
+    public CompletableFuture<Result> call() {
         String address = server.getAddress() + "/hds/"+urlEncode(publicKeyHash)+"/audit";
 
-        try {
-            HttpResponse<JsonNode> jsonResponse = Unirest.post(address)
-                    .header("accept", "application/json")
-                    .field("timestamp", timestamp)
-                    .asJson();
+        // All fields go on one body, so the suffix request is sent along with the timestamp
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("timestamp", timestamp);
+        if (knownHash != null) {
+            fields.put("fromSequence", Integer.toString(fromSequence));
+            fields.put("knownHash", knownHash);
+        }
+        MultipartBody request = Unirest.post(address)
+                .header("accept", "application/json")
+                .fields(fields);
+        return QuorumCall.post(server, request).thenApplyAsync(this::handle, QuorumCall.executor());
+    }
 
+    private Result handle(HttpResponse<JsonNode> jsonResponse) {
+        if (debug == Client.debugMode.VERBOSE) {
+            System.out.println(prettyPrintJsonString(jsonResponse.getBody()));
+        }
+
+        if (!checkServerSignature(jsonResponse.getBody(), timestamp, server.getPublicKey())) {
+            throw new QuorumCall.ServerError("Could not verify the server's signature");
+        } else if (jsonResponse.getStatus() == 400) {
+            throw new QuorumCall.ServerError(jsonResponse.getBody().getObject().getString("message"));
+        } else if (jsonResponse.getStatus() != 200) {
+            throw new QuorumCall.ServerError("Unexpected status code: " + jsonResponse.getStatus());
+        }
+        JSONArray array = jsonResponse.getBody().getObject().getJSONArray("transactions");
+        // The server either continues from our verified transaction or, if its chain doesn't have it, starts over
+        int start = jsonResponse.getBody().getObject().optInt("fromSequence", 0);
+        if (start != 0 && start != fromSequence) {
+            throw new QuorumCall.ServerError("Audit started at an unexpected transaction: " + start);
+        }
+        String previous = start == 0 ? null : knownHash;
+        List<Transaction> transactionList = new LinkedList<>();
+        // Only signatures we haven't verified before, over exactly these fields, need checking
+        List<Unverified> unverified = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject transaction = array.getJSONObject(i);
+            String id = transaction.getString("id");
+            boolean linked = previous == null || previous.equals(transaction.getString("previousTransaction"));
+            if (!id.startsWith((start + i) + "-") || !linked
+                    || !transaction.getString("transactionHash").equals(hashToString(Base64.getDecoder().decode(transaction.getString("sig"))))) {
+                throw new QuorumCall.ServerError("Transaction " + id + " doesn't continue the audited chain");
+            }
+            previous = transaction.getString("transactionHash");
+            byte[][] fields = signedFields(transaction);
+            String signedHash = hashToString(fields);
+            if (!verified.contains(transaction.getString("transactionHash"), signedHash)) {
+                unverified.add(new Unverified(id, transaction.getString("transactionHash"), signedHash,
+                        new BatchVerifier.Check(publicKey, Base64.getDecoder().decode(transaction.getString("sig")), fields)));
+            }
+            transactionList.add(new Transaction(id,
+                    transaction.getJSONObject("from").getString("keyHash"),
+                    transaction.getJSONObject("to").getString("keyHash"),
+                    transaction.getInt("amount"),
+                    transaction.getString("sig"),
+                    transaction.getString("transactionHash")));
+        }
+        // The other servers' audits are verifying the same history, each signature is verified by one of them
+        while (!unverified.isEmpty()) {
+            List<Unverified> claimed = new ArrayList<>();
+            List<Unverified> waiting = new ArrayList<>();
+            for (Unverified transaction : unverified) {
+                transaction.other = verified.claim(transaction.transactionHash, transaction.signedHash);
+                (transaction.other == null ? claimed : waiting).add(transaction);
+            }
             if (debug == Client.debugMode.VERBOSE) {
-                System.out.println(prettyPrintJsonString(jsonResponse.getBody()));
+                System.out.println("[DEBUG] verifying " + claimed.size() + " of " + array.length() + " transactions from the audit");
             }
-
-            if (!checkServerSignature(jsonResponse.getBody(), timestamp, server.getPublicKey())) {
-                Client.callbackError(server, "Could not verify the server's signature", opid);
-                return;
-            } else if (jsonResponse.getStatus() == 400) {
-                Client.callbackError(server, jsonResponse.getBody().getObject().getString("message"), opid);
-                return;
-            } else if (jsonResponse.getStatus() == 200) {
-                JSONArray array = jsonResponse.getBody().getObject().getJSONArray("transactions");
-                System.out.println("[DEBUG] verifying " + array.length() + " transactions from the audit");
-                LinkedList<Transaction> transactionList = new LinkedList<>();
-                for (int i = array.length() - 1; i >= 0; i--) {
-                    JSONObject transaction = array.getJSONObject(i);
-                    Transaction t = new Transaction(transaction.getString("id"),
-                            transaction.getJSONObject("from").getString("keyHash"),
-                            transaction.getJSONObject("to").getString("keyHash"),
-                            transaction.getInt("amount"),
-                            transaction.getString("sig"),
-                            transaction.getString("transactionHash"));
-                    System.out.println("[DEBUG] verifying transaction with id " + transaction.getString("id"));
-                    Signature s = null;
-                    if (transaction.getBoolean("receiving")) {
-                        // Transaction comes from a receive operation
-                        try {
-                            s = verifySignature(publicKey);
-                            s.update(BigInteger.valueOf(transaction.getInt("senderId")).toByteArray());
-                            s.update(Base64.getDecoder().decode(transaction.getString("senderSig")));
-                            s.update(transaction.getString("timestamp").getBytes());
-                            if (s.verify(Base64.getDecoder().decode(transaction.getString("sig")))) {
-                                Client.callbackError(server, "Failed to verify transaction " + transaction.getString("id"), opid);
-                                return;
-                            }
-                        } catch (InvalidKeyException | SignatureException e) {
-                            e.printStackTrace();
-                        }
-                    } else {
-                        // Transaction comes from a send operation
-                        try {
-                            s = verifySignature(publicKey);
-                            s.update(transaction.getJSONObject("from").getString("keyHash").getBytes());
-                            s.update(transaction.getJSONObject("to").getString("keyHash").getBytes());
-                            s.update(BigInteger.valueOf(transaction.getInt("amount")).toByteArray());
-                            s.update(transaction.getString("previousTransaction").getBytes());
-                            s.update(transaction.getString("timestamp").getBytes());
-                            if (!s.verify(Base64.getDecoder().decode(transaction.getString("sig")))) {
-                                Client.callbackError(server, "Failed to verify transaction " + transaction.getString("id"), opid);
-                                return;
-                            }
-                        } catch (InvalidKeyException | SignatureException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    transactionList.addFirst(t);
+            // Ours are released before waiting, so two audits never wait on each other
+            verify(claimed);
+            unverified = new ArrayList<>();
+            for (Unverified transaction : waiting) {
+                if (!transaction.other.join()) {
+                    unverified.add(transaction);
                 }
-                Client.callbackAudit(server, transactionList, jsonResponse.getBody(), opid);
-                return;
-            } else {
-                Client.callbackError(server, "Unexpected status code: " + jsonResponse.getStatus(), opid);
-                return;
             }
-        } catch (UnirestException e) {
-            Client.callbackError(server, e.getMessage(), opid);
-            return;
+        }
+        return new Result(start, transactionList, jsonResponse.getBody());
+    }
+
+    private void verify(List<Unverified> claimed) {
+        List<BatchVerifier.Check> checks = new ArrayList<>(claimed.size());
+        Map<String, String> entries = new HashMap<>();
+        for (Unverified transaction : claimed) {
+            checks.add(transaction.check);
+            entries.put(transaction.transactionHash, transaction.signedHash);
+        }
+        int invalid = -1;
+        boolean valid = false;
+        try {
+            invalid = BatchVerifier.getInstance().verify(checks);
+            valid = invalid == -1;
+        } finally {
+            verified.release(entries, valid);
+        }
+        if (invalid != -1) {
+            throw new QuorumCall.ServerError("Failed to verify transaction " + claimed.get(invalid).id);
+        }
+    }
+
+    /* A signature of the reply that no audit had verified yet */
+    private static class Unverified {
+        private final String id;
+        private final String transactionHash;
+        private final String signedHash;
+        private final BatchVerifier.Check check;
+        private CompletableFuture<Boolean> other;
+
+        private Unverified(String id, String transactionHash, String signedHash, BatchVerifier.Check check) {
+            this.id = id;
+            this.transactionHash = transactionHash;
+            this.signedHash = signedHash;
+            this.check = check;
         }
     }
 }
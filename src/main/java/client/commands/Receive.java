@@ -1,11 +1,11 @@
 package client.commands;
 
 import client.Client;
+import client.QuorumCall;
 import client.domain.Server;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
 
 import java.io.IOException;
 import java.math.BigInteger;
@@ -15,9 +15,9 @@ import java.nio.file.Paths;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
-import java.text.SimpleDateFormat;
 import java.util.Base64;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 
 import static client.Client.debug;
 import static client.ClientCrypto.checkServerSignature;
@@ -25,59 +25,51 @@ import static client.ClientCrypto.createSignature;
 import static client.ClientCrypto.prettyPrintJsonString;
 
 @SuppressWarnings("Duplicates")
-public class Receive implements Runnable {
+public class Receive {
     private Server server;
     private String transactionID;
     private String transactionSig;
     private String timestamp;
     private String sig;
     private String previousTransaction;
-    private int opid;
 
-    public Receive(Server server, String transactionID, String transactionSig, String previousTransaction, String timestamp, String sig, int opid){
+    public Receive(Server server, String transactionID, String transactionSig, String previousTransaction, String timestamp, String sig){
         this.server = server;
         this.transactionID = transactionID;
         this.transactionSig = transactionSig;
         this.timestamp = timestamp;
         this.sig = sig;
         this.previousTransaction = previousTransaction;
-        this.opid = opid;
     }
 
-    @Override
-    public void run() {
+    public CompletableFuture<String> call() {
         String address = server.getAddress() + "/hds/receive/"+transactionID;
 
-        try {
-            HttpResponse<JsonNode> jsonResponse = Unirest.post(address)
-                    .header("accept", "application/json")
-                    .field("id", transactionID)
-                    .field("transactionSig", transactionSig)
-                    .field("previousTransaction", previousTransaction)
-                    .field("timestamp", timestamp)
-                    .field("sig", sig)
-                    .asJson();
+        return QuorumCall.post(server, Unirest.post(address)
+                .header("accept", "application/json")
+                .field("id", transactionID)
+                .field("transactionSig", transactionSig)
+                .field("previousTransaction", previousTransaction)
+                .field("timestamp", timestamp)
+                .field("sig", sig))
+                .thenApplyAsync(this::handle, QuorumCall.executor());
+    }
 
-            if (debug == Client.debugMode.VERBOSE) {
-                System.out.println(prettyPrintJsonString(jsonResponse.getBody()));
-            }
+    private String handle(HttpResponse<JsonNode> jsonResponse) {
+        if (debug == Client.debugMode.VERBOSE) {
+            System.out.println(prettyPrintJsonString(jsonResponse.getBody()));
+        }
 
-            if (!checkServerSignature(jsonResponse.getBody(), timestamp, server.getPublicKey())) {
-                Client.callbackError(server, "Could not verify the server's signature", opid);
-            }
-            else if (jsonResponse.getStatus() == 400){
-                Client.callbackError(server, jsonResponse.getBody().getObject().getString("message"), opid);
-            }
-            else if (jsonResponse.getStatus() == 201) {
-                Client.callbackReceive(server, "Received successfully! Amount received: " + jsonResponse.getBody().getObject().get("amount"), opid);
-            }
-            else {
-                Client.callbackError(server, "Unexpected status code: " + jsonResponse.getStatus(), opid);
-            }
-        } catch (UnirestException e) {
-            Client.callbackError(server, e.getMessage(), opid);
-            return;
+        if (!checkServerSignature(jsonResponse.getBody(), timestamp, server.getPublicKey())) {
+            throw new QuorumCall.ServerError("Could not verify the server's signature");
+        }
+        else if (jsonResponse.getStatus() == 400){
+            throw new QuorumCall.ServerError(jsonResponse.getBody().getObject().getString("message"));
+        }
+        else if (jsonResponse.getStatus() == 201) {
+            return "Received successfully! Amount received: " + jsonResponse.getBody().getObject().get("amount");
         }
+        throw new QuorumCall.ServerError("Unexpected status code: " + jsonResponse.getStatus());
     }
 
     public static String sign(String transactionID, String transactionSig, String previousTransaction, String timestamp, PrivateKey privateKey){
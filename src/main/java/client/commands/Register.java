@@ -1,68 +1,60 @@
 package client.commands;
 
 import client.Client;
+import client.QuorumCall;
 import client.domain.Server;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
 
 import java.security.*;
 import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
 
 import static client.Client.debug;
 import static client.ClientCrypto.*;
 
 @SuppressWarnings("Duplicates")
-public class Register implements Runnable {
+public class Register {
     private Server server;
     private PublicKey publicKey;
     private String timestamp;
     private String sig;
-    private int opid;
 
-    public Register(Server server, PublicKey publicKey, String timestamp, String sig, int opid){
+    public Register(Server server, PublicKey publicKey, String timestamp, String sig){
         this.publicKey = publicKey;
         this.server = server;
         this.timestamp = timestamp;
         this.sig = sig;
-        this.opid = opid;
     }
 
-    @Override
-    public void run() {
-        try {
-            String publicKeyString = new String(Base64.getEncoder().encode(publicKey.getEncoded()));
-            String address = server.getAddress() + "/hds/";
-
-            HttpResponse<JsonNode> jsonResponse = Unirest.post(address)
-                    .header("accept", "application/json")
-                    .field("key", publicKeyString)
-                    .field("timestamp", timestamp)
-                    .field("sig", sig)
-                    .asJson();
+    public CompletableFuture<String> call() {
+        String publicKeyString = new String(Base64.getEncoder().encode(publicKey.getEncoded()));
+        String address = server.getAddress() + "/hds/";
 
-            if (debug == Client.debugMode.VERBOSE) {
-                System.out.println(prettyPrintJsonString(jsonResponse.getBody()));
-            }
+        return QuorumCall.post(server, Unirest.post(address)
+                .header("accept", "application/json")
+                .field("key", publicKeyString)
+                .field("timestamp", timestamp)
+                .field("sig", sig))
+                .thenApplyAsync(this::handle, QuorumCall.executor());
+    }
 
-            if (!checkServerSignature(jsonResponse.getBody(), timestamp, server.getPublicKey())) {
-                Client.callbackError(server, "Could not verify the server's signature", opid);
-            }
+    private String handle(HttpResponse<JsonNode> jsonResponse) {
+        if (debug == Client.debugMode.VERBOSE) {
+            System.out.println(prettyPrintJsonString(jsonResponse.getBody()));
+        }
 
-            else if (jsonResponse.getStatus() == 400){
-                Client.callbackError(server, jsonResponse.getBody().getObject().getString("message"), opid);
-            }
-            else if (jsonResponse.getStatus() == 201) {
-                Client.callbackRegister(server,"Registered successfully! Your hash: " + jsonResponse.getBody().getObject().get("keyHash"), opid);
-            }
-            else {
-                Client.callbackError(server, "Unexpected status code: " + jsonResponse.getStatus(), opid);
-            }
-        } catch (UnirestException e) {
-            Client.callbackError(server, e.getMessage(), opid);
-            return;
+        if (!checkServerSignature(jsonResponse.getBody(), timestamp, server.getPublicKey())) {
+            throw new QuorumCall.ServerError("Could not verify the server's signature");
+        }
+        else if (jsonResponse.getStatus() == 400){
+            throw new QuorumCall.ServerError(jsonResponse.getBody().getObject().getString("message"));
+        }
+        else if (jsonResponse.getStatus() == 201) {
+            return "Registered successfully! Your hash: " + jsonResponse.getBody().getObject().get("keyHash");
         }
+        throw new QuorumCall.ServerError("Unexpected status code: " + jsonResponse.getStatus());
     }
 
     public static String sign(PublicKey publicKey, String timestamp, PrivateKey privateKey){
@@ -1,11 +1,11 @@
 package client.commands;
 
 import client.Client;
+import client.QuorumCall;
 import client.domain.Server;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
 
 import java.math.BigInteger;
 import java.security.InvalidKeyException;
@@ -13,12 +13,13 @@ import java.security.PrivateKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
 
 import static client.Client.debug;
 import static client.ClientCrypto.*;
 
 @SuppressWarnings("Duplicates")
-public class Send implements Runnable{
+public class Send {
     private Server server;
     private String source;
     private String dest;
@@ -26,9 +27,8 @@ public class Send implements Runnable{
     private String previousTransaction;
     private String timestamp;
     private String sig;
-    private int opid;
 
-    public Send(Server server, String source, String dest, String amount, String previousTransaction, String timestamp, String sig, int opid){
+    public Send(Server server, String source, String dest, String amount, String previousTransaction, String timestamp, String sig){
         this.server = server;
         this.source = source;
         this.dest = dest;
@@ -36,43 +36,36 @@ public class Send implements Runnable{
         this.previousTransaction = previousTransaction;
         this.timestamp = timestamp;
         this.sig = sig;
-        this.opid = opid;
     }
 
-    @Override
-    public void run() {
+    public CompletableFuture<String> call() {
         String address = server.getAddress() + "/hds/"+urlEncode(source)+"/send";
 
-        try {
-            HttpResponse<JsonNode> jsonResponse = Unirest.post(address)
-                    .header("accept", "application/json")
-                    .field("destKey", dest)
-                    .field("amount", amount)
-                    .field("timestamp", timestamp)
-                    .field("previousTransaction", previousTransaction)
-                    .field("sig", sig)
-                    .asJson();
+        return QuorumCall.post(server, Unirest.post(address)
+                .header("accept", "application/json")
+                .field("destKey", dest)
+                .field("amount", amount)
+                .field("timestamp", timestamp)
+                .field("previousTransaction", previousTransaction)
+                .field("sig", sig))
+                .thenApplyAsync(this::handle, QuorumCall.executor());
+    }
 
-            if (debug == Client.debugMode.VERBOSE) {
-                System.out.println(prettyPrintJsonString(jsonResponse.getBody()));
-            }
+    private String handle(HttpResponse<JsonNode> jsonResponse) {
+        if (debug == Client.debugMode.VERBOSE) {
+            System.out.println(prettyPrintJsonString(jsonResponse.getBody()));
+        }
 
-            if (!checkServerSignature(jsonResponse.getBody(), timestamp, server.getPublicKey())) {
-                Client.callbackError(server, "Could not verify the server's signature", opid);
-            }
-            else if (jsonResponse.getStatus() == 400){
-                Client.callbackError(server, jsonResponse.getBody().getObject().getString("message"), opid);
-            }
-            else if (jsonResponse.getStatus() == 201) {
-                Client.callbackSend(server, "Sent successfully! Transaction id: " + jsonResponse.getBody().getObject().get("id"), opid);
-            }
-            else {
-                Client.callbackError(server, "Unexpected status code: " + jsonResponse.getStatus(), opid);
-            }
-        } catch (UnirestException e) {
-            Client.callbackError(server, e.getMessage(), opid);
-            return;
+        if (!checkServerSignature(jsonResponse.getBody(), timestamp, server.getPublicKey())) {
+            throw new QuorumCall.ServerError("Could not verify the server's signature");
+        }
+        else if (jsonResponse.getStatus() == 400){
+            throw new QuorumCall.ServerError(jsonResponse.getBody().getObject().getString("message"));
+        }
+        else if (jsonResponse.getStatus() == 201) {
+            return "Sent successfully! Transaction id: " + jsonResponse.getBody().getObject().get("id");
         }
+        throw new QuorumCall.ServerError("Unexpected status code: " + jsonResponse.getStatus());
     }
 
     public static String sign(String source, String dest, String amount, String previousTransaction, String timestamp, PrivateKey privateKey){
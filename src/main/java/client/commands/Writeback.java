@@ -1,67 +1,60 @@
 package client.commands;
 
 import client.Client;
+import client.QuorumCall;
 import client.domain.Server;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.exceptions.UnirestException;
 
 import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
 
 import static client.Client.debug;
 import static client.ClientCrypto.checkServerSignature;
 import static client.ClientCrypto.prettyPrintJsonString;
 
-public class Writeback implements Runnable {
+public class Writeback {
     private Server server;
     private String publicKeyHash;
     private JsonNode json;
     private String timestamp;
-    private int opid;
 
-    public Writeback(Server server, String publicKeyHash, JsonNode json, String timestamp, int opid){
+    public Writeback(Server server, String publicKeyHash, JsonNode json, String timestamp){
         this.server = server;
         this.publicKeyHash = publicKeyHash;
         this.json = json;
         this.timestamp = timestamp;
-        this.opid = opid;
     }
 
-    @Override
-    public void run() {
+    public CompletableFuture<String> call() {
         String address = server.getAddress() + "/hds/wb";
         String transactionList = null;
         if (json != null) {
             transactionList = prettyPrintJsonString(json);
         }
-        try {
-            HttpResponse<JsonNode> jsonResponse = Unirest.post(address)
-                    .header("accept", "application/json")
-                    .field("key", publicKeyHash)
-                    .field("transactionList", transactionList)
-                    .field("timestamp", timestamp)
-                    .asJson();
+        return QuorumCall.post(server, Unirest.post(address)
+                .header("accept", "application/json")
+                .field("key", publicKeyHash)
+                .field("transactionList", transactionList)
+                .field("timestamp", timestamp))
+                .thenApplyAsync(this::handle, QuorumCall.executor());
+    }
 
-            if (debug == Client.debugMode.VERBOSE) {
-                System.out.println(prettyPrintJsonString(jsonResponse.getBody()));
-            }
+    private String handle(HttpResponse<JsonNode> jsonResponse) {
+        if (debug == Client.debugMode.VERBOSE) {
+            System.out.println(prettyPrintJsonString(jsonResponse.getBody()));
+        }
 
-            if (!checkServerSignature(jsonResponse.getBody(), timestamp, server.getPublicKey())) {
-                Client.callbackError(server, "Could not verify the server's signature", opid);
-            }
-            else if (jsonResponse.getStatus() == 400){
-                Client.callbackError(server, jsonResponse.getBody().getObject().getString("message"), opid);
-            }
-            else if (jsonResponse.getStatus() == 201) {
-                Client.callbackWriteback(server, "ACK", opid);
-            }
-            else {
-                Client.callbackError(server, "Unexpected status code: " + jsonResponse.getStatus(), opid);
-            }
-        } catch (UnirestException e) {
-            Client.callbackError(server, e.getMessage(), opid);
-            return;
+        if (!checkServerSignature(jsonResponse.getBody(), timestamp, server.getPublicKey())) {
+            throw new QuorumCall.ServerError("Could not verify the server's signature");
+        }
+        else if (jsonResponse.getStatus() == 400){
+            throw new QuorumCall.ServerError(jsonResponse.getBody().getObject().getString("message"));
+        }
+        else if (jsonResponse.getStatus() == 201) {
+            return "ACK";
         }
+        throw new QuorumCall.ServerError("Unexpected status code: " + jsonResponse.getStatus());
     }
 }
@@ -1,17 +1,109 @@
 package client.domain;
 
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+
+import java.io.IOException;
 import java.security.PublicKey;
+import java.util.concurrent.ThreadFactory;
 
+/*
+ * A replica, along with the pool of keep-alive connections the client keeps open to it.
+ * The pool is only started on the first request, and every request to this replica reuses it,
+ * so a quorum call doesn't pay a TCP handshake per server per operation.
+ * Defaults come from hds.client.maxConnections, hds.client.connectTimeoutMillis,
+ * hds.client.readTimeoutMillis and hds.client.keepAliveMillis.
+ */
 public class Server {
+    private static final int MAX_CONNECTIONS = Integer.getInteger("hds.client.maxConnections", 16);
+    private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("hds.client.connectTimeoutMillis", 5 * 1000);
+    private static final int READ_TIMEOUT_MILLIS = Integer.getInteger("hds.client.readTimeoutMillis", 10 * 1000);
+    private static final long KEEP_ALIVE_MILLIS = Long.getLong("hds.client.keepAliveMillis", 30 * 1000L);
+
     private String name;
     private String address;
     private PublicKey publicKey;
 
+    private int maxConnections = MAX_CONNECTIONS;
+    private int connectTimeoutMillis = CONNECT_TIMEOUT_MILLIS;
+    private int readTimeoutMillis = READ_TIMEOUT_MILLIS;
+    private CloseableHttpAsyncClient httpClient;
+
     public Server(String name, String address, PublicKey publicKey){
+        this.name = name;
         this.address = address;
         this.publicKey = publicKey;
     }
 
+    public Server(String name, String address, PublicKey publicKey, int maxConnections, int connectTimeoutMillis, int readTimeoutMillis){
+        this(name, address, publicKey);
+        this.maxConnections = maxConnections;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /* The pooled client for this replica, started on first use */
+    public synchronized CloseableHttpAsyncClient getHttpClient() {
+        if (httpClient == null) {
+            ThreadFactory threads = runnable -> {
+                Thread thread = new Thread(runnable, "hds-http-" + address);
+                thread.setDaemon(true);
+                return thread;
+            };
+            IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                    .setConnectTimeout(connectTimeoutMillis)
+                    .setSoTimeout(readTimeoutMillis)
+                    .setSoKeepAlive(true)
+                    .setTcpNoDelay(true)
+                    .build();
+            PoolingNHttpClientConnectionManager connections;
+            try {
+                connections = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig, threads));
+            } catch (IOReactorException e) {
+                throw new IllegalStateException("Couldn't start the connection pool for " + address, e);
+            }
+            // Every connection in this pool goes to the same replica, so one route gets all of them
+            connections.setMaxTotal(maxConnections);
+            connections.setDefaultMaxPerRoute(maxConnections);
+
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(connectTimeoutMillis)
+                    .setConnectionRequestTimeout(connectTimeoutMillis)
+                    .setSocketTimeout(readTimeoutMillis)
+                    .build();
+            httpClient = HttpAsyncClients.custom()
+                    .setConnectionManager(connections)
+                    .setDefaultRequestConfig(requestConfig)
+                    // Keep idle connections for as long as the server allows, up to our own limit
+                    .setKeepAliveStrategy((response, context) -> {
+                        long serverLimit = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                        return serverLimit < 0 ? KEEP_ALIVE_MILLIS : Math.min(serverLimit, KEEP_ALIVE_MILLIS);
+                    })
+                    .setThreadFactory(threads)
+                    .build();
+            httpClient.start();
+        }
+        return httpClient;
+    }
+
+    /* Closes the pooled connections, a later request opens a new pool */
+    public synchronized void close() {
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            httpClient = null;
+        }
+    }
+
     public String getAddress() {
         return address;
     }
@@ -35,4 +127,16 @@ public class Server {
     public void setName(String name) {
         this.name = name;
     }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
 }
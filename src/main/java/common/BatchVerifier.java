@@ -0,0 +1,129 @@
+package common;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Verifies the signatures of a whole transaction list at once, split across a ForkJoin pool.
+ * Once a signature fails, work on the signatures after it is abandoned, so a forged entry early
+ * in a long chain costs little. It only depends on java.security, so the client's audit and the
+ * server's writeback share it without either depending on the other.
+ */
+public class BatchVerifier {
+    private static final int SPLIT_THRESHOLD = 8;
+    private static final int NONE = Integer.MAX_VALUE;
+
+    private static final ThreadLocal<Signature> signatures = ThreadLocal.withInitial(() -> newSignature());
+
+    private static BatchVerifier instance;
+
+    private final ForkJoinPool pool;
+
+    public BatchVerifier(int parallelism) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    private static Signature newSignature() {
+        try {
+            return Signature.getInstance("SHA256withECDSA");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public static synchronized BatchVerifier getInstance() {
+        if (instance == null) {
+            instance = new BatchVerifier(Integer.getInteger("hds.verify.threads", Runtime.getRuntime().availableProcessors()));
+        }
+        return instance;
+    }
+
+    /* One signature to check: sig must be key's signature over the message parts, in order */
+    public static class Check {
+        private final PublicKey key;
+        private final byte[] sig;
+        private final byte[][] message;
+
+        public Check(PublicKey key, byte[] sig, byte[]... message) {
+            this.key = key;
+            this.sig = sig;
+            this.message = message;
+        }
+
+        boolean verify() {
+            if (key == null || sig == null) {
+                return false;
+            }
+            try {
+                Signature s = signatures.get();
+                s.initVerify(key);
+                for (byte[] part : message) {
+                    if (part == null) {
+                        return false;
+                    }
+                    s.update(part);
+                }
+                return s.verify(sig);
+            } catch (InvalidKeyException | SignatureException e) {
+                // Malformed signatures end up here, they are just invalid
+                return false;
+            }
+        }
+    }
+
+    /* Returns the index of the first check that fails, or -1 if every signature is valid */
+    public int verify(List<Check> checks) {
+        if (checks.isEmpty()) {
+            return -1;
+        }
+        AtomicInteger failed = new AtomicInteger(NONE);
+        if (checks.size() <= SPLIT_THRESHOLD) {
+            new Range(checks, 0, checks.size(), failed).compute();
+        } else {
+            pool.invoke(new Range(checks, 0, checks.size(), failed));
+        }
+        return failed.get() == NONE ? -1 : failed.get();
+    }
+
+    @SuppressWarnings("serial")
+    private static class Range extends RecursiveAction {
+        private final List<Check> checks;
+        private final int from;
+        private final int to;
+        private final AtomicInteger failed;
+
+        Range(List<Check> checks, int from, int to, AtomicInteger failed) {
+            this.checks = checks;
+            this.from = from;
+            this.to = to;
+            this.failed = failed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Range(checks, from, middle, failed), new Range(checks, middle, to, failed));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                // Anything after a known failure doesn't change the answer
+                if (failed.get() < i) {
+                    return;
+                }
+                if (!checks.get(i).verify()) {
+                    failed.accumulateAndGet(i, Math::min);
+                    return;
+                }
+            }
+        }
+    }
+}
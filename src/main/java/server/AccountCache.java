@@ -0,0 +1,104 @@
+package server;
+
+import server.domain.Account;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Bounded LRU cache of accounts by keyHash. Entries are only added or replaced by the account's writer,
+ * and HDSLib changes a balance on a copy that replaces the cached account once the store has committed it,
+ * so a cached account is always the committed one and is never changed in place.
+ */
+public class AccountCache {
+    private final int capacity;
+    private final Map<String, Account> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    @SuppressWarnings("serial")
+    public AccountCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.entries = new LinkedHashMap<String, Account>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Account> eldest) {
+                if (size() > AccountCache.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public Account get(String keyHash) {
+        Account account;
+        synchronized (entries) {
+            account = entries.get(keyHash);
+        }
+        if (account == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return account;
+    }
+
+    /* Returns the account already cached under the same keyHash, if any, so callers share one instance */
+    public Account put(Account account) {
+        synchronized (entries) {
+            Account current = entries.get(account.getKeyHash());
+            if (current != null) {
+                return current;
+            }
+            entries.put(account.getKeyHash(), account);
+            return account;
+        }
+    }
+
+    /* Replaces the cached account with its new state, once the store has committed it */
+    public void update(Account account) {
+        synchronized (entries) {
+            entries.put(account.getKeyHash(), account);
+        }
+    }
+
+    public void invalidate(String keyHash) {
+        synchronized (entries) {
+            entries.remove(keyHash);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        long lookups = getHits() + getMisses();
+        return "--- Account Cache ---" +
+                "\nEntries: " + size() + "/" + capacity +
+                "\nHits: " + getHits() +
+                "\nMisses: " + getMisses() +
+                "\nHit rate: " + (lookups == 0 ? "-" : String.format("%.1f%%", 100.0 * getHits() / lookups)) +
+                "\nEvictions: " + getEvictions() +
+                "\n-------";
+    }
+}
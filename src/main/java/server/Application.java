@@ -1,23 +1,31 @@
 package server;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.javalin.Context;
 import io.javalin.Javalin;
 import server.domain.Account;
 import server.domain.AccountState;
 import server.domain.Transaction;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
 import java.util.Objects;
@@ -31,30 +39,139 @@ public class Application {
     private static PublicKey serverPubkey;
     private static String address;
     public static int port;
-    private static int delay;
+    private static FaultInjector faults = FaultInjector.none();
+
+    // Shared so Jackson builds its serializers once, not on every response
+    private static final ObjectMapper mapper = new ObjectMapper().disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    private static final ObjectWriter writer = mapper.writer();
+    private static final byte[] PING = "{\"ping\":\"ping\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ACK = "{\"ack\":\"ack\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SERVER_SIG_FIELD = "\"serverSig\":\"".getBytes(StandardCharsets.UTF_8);
 
     public static ObjectNode signMessage(Object message, String timestamp) throws Exception{
-        Signature s = HDSCrypto.createSignature(serverPrivkey);
-        s.update(timestamp.getBytes());
-        String signature = new String(Base64.getEncoder().encode(s.sign()));
-        ObjectMapper mapper = new ObjectMapper();
         ObjectNode msg = mapper.valueToTree(message);
-        msg.put("serverSig", signature);
+        msg.put("serverSig", signTimestamp(timestamp));
         return msg;
     }
 
-    public static void main(String[] args) {
+    /* Same JSON as signMessage, serialized once straight to bytes without building a tree */
+    public static byte[] signedJson(Object message, String serverSig) throws IOException {
+        return appendServerSig(writer.writeValueAsBytes(message), serverSig);
+    }
+
+    /* json must be an object, serverSig becomes its last field. Base64 never needs escaping */
+    public static byte[] appendServerSig(byte[] json, String serverSig) {
+        int end = json.length - 1;
+        while (end > 0 && json[end] != '}') {
+            end--;
+        }
+        int start = 0;
+        while (start < end && Character.isWhitespace(json[start])) {
+            start++;
+        }
+        if (start >= end || json[start] != '{') {
+            throw new IllegalArgumentException("Only JSON objects can be signed");
+        }
+        boolean empty = true;
+        for (int i = start + 1; i < end && empty; i++) {
+            empty = Character.isWhitespace(json[i]);
+        }
+        byte[] sig = serverSig.getBytes(StandardCharsets.US_ASCII);
+        byte[] out = new byte[end + (empty ? 0 : 1) + SERVER_SIG_FIELD.length + sig.length + 2];
+        System.arraycopy(json, 0, out, 0, end);
+        int at = end;
+        if (!empty) {
+            out[at++] = ',';
+        }
+        System.arraycopy(SERVER_SIG_FIELD, 0, out, at, SERVER_SIG_FIELD.length);
+        at += SERVER_SIG_FIELD.length;
+        System.arraycopy(sig, 0, out, at, sig.length);
+        at += sig.length;
+        out[at++] = '"';
+        out[at] = '}';
+        return out;
+    }
+
+    private static void respondSigned(Context ctx, String route, Object message) throws Exception {
+        faults.respond(ctx, route, signedJson(message, signTimestamp(ctx.formParam("timestamp"))));
+    }
+
+    private static void respondSigned(Context ctx, String route, byte[] json) throws Exception {
+        faults.respond(ctx, route, appendServerSig(json, signTimestamp(ctx.formParam("timestamp"))));
+    }
+
+    /* The server's key pair, null until generateKey has loaded it */
+    static KeyPair getServerKeys() {
+        return serverPrivkey == null ? null : new KeyPair(serverPubkey, serverPrivkey);
+    }
+
+    private static String signTimestamp(String timestamp) throws Exception{
+        Signature s = HDSCrypto.createSignature(serverPrivkey);
+        s.update(timestamp.getBytes());
+        return new String(Base64.getEncoder().encode(s.sign()));
+    }
+
+    /*
+     * Writes {"fromSequence": n, "transactions": [...], "nextSequence": n, "serverSig": "..."} as the rows come out of the store,
+     * so only one transaction is in memory at a time. nextSequence is only present when the page was filled.
+     */
+    private static void streamAudit(LedgerStore.Cursor<Transaction> transactions, int fromSequence, int pageSize, String serverSig, OutputStream out) throws IOException {
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeNumberField("fromSequence", fromSequence);
+            generator.writeArrayFieldStart("transactions");
+            int count = 0;
+            int lastSequence = -1;
+            while (transactions.hasNext()) {
+                Transaction transaction = transactions.next();
+                mapper.writeValue(generator, transaction);
+                lastSequence = transaction.getSequence();
+                count++;
+            }
+            generator.writeEndArray();
+            if (pageSize > 0 && count == pageSize) {
+                generator.writeNumberField("nextSequence", lastSequence + 1);
+            }
+            generator.writeStringField("serverSig", serverSig);
+            generator.writeEndObject();
+        }
+    }
+
+    public static void main(String[] arguments) {
+        // --store=<type> picks where the ledger is kept, the other arguments are positional
+        List<String> positional = new ArrayList<>();
+        for (String argument : arguments) {
+            if (argument.startsWith("--store=")) {
+                String type = argument.substring("--store=".length());
+                if (!Arrays.asList(LedgerStore.TYPES).contains(type)) {
+                    System.out.println("Unknown ledger store " + type + ", expected one of " + String.join(", ", LedgerStore.TYPES));
+                    return;
+                }
+                HDSLib.setStore(type);
+            } else {
+                positional.add(argument);
+            }
+        }
+        String[] args = positional.toArray(new String[0]);
         if (args.length < 1) {
             System.out.println("Please specify the port");
             return;
         }
         if (args.length == 2) {
-            delay = Integer.parseInt(args[1]);
-        } else {
-            delay = 0;
+            // Either a delay in seconds for every route, or a FaultInjector spec
+            try {
+                faults = args[1].matches("\\d+") ? FaultInjector.fixedDelay(Integer.parseInt(args[1])) : FaultInjector.parse(args[1]);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid fault injection spec: " + e.getMessage());
+                return;
+            }
         }
         port = Integer.valueOf(args[0]);
         generateKey();
+        // Open the ledger, and replay its log, before the first request rather than on it
+        HDSLib.getInstance();
+        // Whatever stops the server, the store gets to checkpoint and truncate its log
+        Runtime.getRuntime().addShutdownHook(new Thread(HDSLib::shutdown, "hds-shutdown"));
         try {
             address = InetAddress.getLocalHost().getHostAddress();
         } catch (UnknownHostException e) {
@@ -68,7 +185,7 @@ public class Application {
             e.printStackTrace();
             ctx.status(400);
             try {
-                ctx.json(signMessage(e, ctx.formParam("timestamp")));
+                respondSigned(ctx, "error", e);
             } catch (Exception e1) {
                 // Ok, you got me here
                 System.out.println("FATAL ERROR SORRY");
@@ -77,9 +194,7 @@ public class Application {
 
         // Register
         app.post("/hds/", ctx -> {
-            if (delay != 0) {
-                Thread.sleep(delay*1000);
-            }
+            faults.beforeRequest("register");
             String key = ctx.formParam("key");
             byte[] sig = Base64.getDecoder().decode(Objects.requireNonNull(ctx.formParam("sig")));
             Account account = HDSLib.getInstance().register(HDSCrypto.stringToPublicKey(key), ctx.formParam("timestamp"), sig);
@@ -89,15 +204,13 @@ public class Application {
             } else {
                 AccountState state = HDSLib.getInstance().checkAccount(account.getKeyHash());
                 ctx.status(201);
-                ctx.json(signMessage(state, ctx.formParam("timestamp")));
+                respondSigned(ctx, "register", state);
             }
         });
 
         // Check Account
         app.post("/hds/:key/check", ctx -> {
-            if (delay != 0) {
-                Thread.sleep(delay*1000);
-            }
+            faults.beforeRequest("check");
             String key = urlDecode(ctx.param("key"));
             AccountState accountState = HDSLib.getInstance().checkAccount(key);
             if (accountState == null) {
@@ -105,34 +218,48 @@ public class Application {
                 //ctx.result("Couldn't get account state.");
             } else {
                 ctx.status(200);
-                ctx.json(signMessage(accountState, ctx.formParam("timestamp")));
+                respondSigned(ctx, "check", accountState);
             }
         });
 
         // Audit
         app.post("/hds/:key/audit", ctx -> {
-            if (delay != 0) {
-                Thread.sleep(delay*1000);
-            }
+            faults.beforeRequest("audit");
             String key = urlDecode(ctx.param("key"));
-            List<Transaction> transactions = HDSLib.getInstance().audit(key);
+            // Without a page size the whole chain is returned, as older clients expect
+            int fromSequence = ctx.formParam("fromSequence") == null ? 0 : Integer.parseInt(ctx.formParam("fromSequence"));
+            int pageSize = ctx.formParam("pageSize") == null ? 0 : Integer.parseInt(ctx.formParam("pageSize"));
+            // A client that already verified up to knownHash only gets what follows it, unless this chain doesn't have it
+            String knownHash = ctx.formParam("knownHash");
+            if (knownHash != null && fromSequence > 0 && !HDSLib.getInstance().hasTransactionAt(key, fromSequence - 1, knownHash)) {
+                fromSequence = 0;
+            }
+            LedgerStore.Cursor<Transaction> transactions = HDSLib.getInstance().auditPage(key, fromSequence, pageSize);
             if (transactions == null) {
                 ctx.status(404);
                 //ctx.result("Make sure you audit a valid account/key.");
             } else {
-                ctx.status(200);
-                ObjectMapper mapper = new ObjectMapper();
-                ArrayNode tnode = mapper.valueToTree(transactions);
-                JsonNode message = mapper.createObjectNode().set("transactions", tnode);
-                ctx.json(signMessage(message, ctx.formParam("timestamp")));
+                try {
+                    String serverSig = signTimestamp(ctx.formParam("timestamp"));
+                    ctx.status(200);
+                    if (faults.isEnabled()) {
+                        // The delayed response has to be complete before the request thread lets go of it
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                        streamAudit(transactions, fromSequence, pageSize, serverSig, buffer);
+                        faults.respond(ctx, "audit", buffer.toByteArray());
+                    } else {
+                        ctx.contentType("application/json");
+                        streamAudit(transactions, fromSequence, pageSize, serverSig, ctx.response().getOutputStream());
+                    }
+                } finally {
+                    transactions.close();
+                }
             }
         });
 
         // Send Transaction
         app.post("/hds/:key/send", ctx -> {
-            if (delay != 0) {
-                Thread.sleep(delay*1000);
-            }
+            faults.beforeRequest("send");
             String sourceKey = urlDecode(ctx.param("key"));
             String destKey = ctx.formParam("destKey");
             int amount = Integer.parseInt(Objects.requireNonNull(ctx.formParam("amount")));
@@ -144,15 +271,13 @@ public class Application {
                 //ctx.result("Error sending coins.");
             } else {
                 ctx.status(201);
-                ctx.json(signMessage(transaction, ctx.formParam("timestamp")));
+                respondSigned(ctx, "send", transaction);
             }
         });
 
         // Receive Transaction
         app.post("/hds/receive/:id", ctx -> {
-            if (delay != 0) {
-                Thread.sleep(delay*1000);
-            }
+            faults.beforeRequest("receive");
             String id = ctx.param("id");
             byte[] transactionSig = Base64.getDecoder().decode(Objects.requireNonNull(ctx.formParam("transactionSig")));
             byte[] sig = Base64.getDecoder().decode(Objects.requireNonNull(ctx.formParam("sig")));
@@ -163,46 +288,47 @@ public class Application {
                 //ctx.result("Error confirming transaction.");
             } else {
                 ctx.status(201);
-                ctx.json(signMessage(transaction, ctx.formParam("timestamp")));
+                respondSigned(ctx, "receive", transaction);
             }
         });
 
         // Ping
         app.post("/hds/ping", ctx -> {
-            if (delay != 0) {
-                Thread.sleep(delay*1000);
-            }
+            faults.beforeRequest("ping");
             ctx.status(200);
-            ObjectMapper mapper = new ObjectMapper();
-            ObjectNode ping = mapper.createObjectNode().put("ping", "ping");
-            ctx.json(signMessage(ping, ctx.formParam("timestamp")));
+            respondSigned(ctx, "ping", PING);
         });
 
         // Receive a writeback
         app.post("/hds/wb", ctx -> {
-            if (delay != 0) {
-                Thread.sleep(delay*1000);
-            }
+            faults.beforeRequest("writeback");
             String key = ctx.formParam("key");
             if (ctx.formParam("transactionList") != null) {
-                ObjectMapper mapper = new ObjectMapper();
                 JsonNode transactions = mapper.readTree(ctx.formParam("transactionList"));
                 HDSLib.getInstance().joinLedger(key, transactions);
             }
             ctx.status(201);
-            ObjectMapper mapper = new ObjectMapper();
-            ObjectNode ping = mapper.createObjectNode().put("ack", "ack");
-            ctx.json(signMessage(ping, ctx.formParam("timestamp")));
+            respondSigned(ctx, "writeback", ACK);
         });
 
         announceSelf();
         System.out.println("\nServer listening on " + address + " at port " + port);
+        if (faults.isEnabled()) {
+            System.out.println("Injecting faults: " + faults);
+        }
+        System.out.println("Write \'stats\' to print database, cache and writer statistics");
         System.out.println("Write \'quit\' to stop the server\n");
         while (true) {
             Scanner scanner = new Scanner(System.in);
             String c = scanner.nextLine();
+            if (c.equals("stats")){
+                System.out.println(HDSLib.getInstance().getStore());
+                System.out.println(HDSLib.getInstance().getAccountCache());
+                System.out.println(HDSLib.getInstance().getWriter());
+            }
             if (c.equals("quit")){
                 app.stop();
+                HDSLib.shutdown();
                 return;
             }
         }
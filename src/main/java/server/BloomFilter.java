@@ -0,0 +1,82 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bloom filter over Base64 SHA-256 digests, used to answer "never seen this signature" without a query.
+ * The digests are already uniformly distributed, so the probe positions are taken straight from their bytes.
+ * A false positive only costs an indexed lookup; there are no false negatives.
+ */
+public class BloomFilter {
+    private final AtomicLongArray bits;
+    private final long size;
+    private final int hashes;
+
+    public BloomFilter(int expectedEntries, double falsePositiveRate) {
+        long m = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.max(1, (m + 63) / 64);
+        this.bits = new AtomicLongArray(words);
+        this.size = words * 64L;
+        this.hashes = Math.max(1, (int) Math.round((double) size / expectedEntries * Math.log(2)));
+    }
+
+    private BloomFilter(AtomicLongArray bits, int hashes) {
+        this.bits = bits;
+        this.size = bits.length() * 64L;
+        this.hashes = hashes;
+    }
+
+    /* Reads a filter written by writeTo */
+    public static BloomFilter readFrom(DataInputStream in) throws IOException {
+        int hashes = in.readInt();
+        AtomicLongArray bits = new AtomicLongArray(in.readInt());
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, in.readLong());
+        }
+        return new BloomFilter(bits, hashes);
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(hashes);
+        out.writeInt(bits.length());
+        for (int i = 0; i < bits.length(); i++) {
+            out.writeLong(bits.get(i));
+        }
+    }
+
+    public void put(String digest) {
+        if (digest == null) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(Base64.getDecoder().decode(digest));
+        long h1 = bytes.getLong();
+        long h2 = bytes.getLong();
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, size);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = bits.get(word);
+            } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+        }
+    }
+
+    public boolean mightContain(String digest) {
+        ByteBuffer bytes = ByteBuffer.wrap(Base64.getDecoder().decode(digest));
+        long h1 = bytes.getLong();
+        long h2 = bytes.getLong();
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, size);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
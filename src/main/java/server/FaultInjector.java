@@ -0,0 +1,182 @@
+package server;
+
+import io.javalin.Context;
+import server.exceptions.InjectedFaultException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Makes this replica slow or faulty on purpose, to test how clients behave when some servers lag.
+ * Delays are applied to the finished response: the request is handled right away, and the response
+ * is handed to Javalin as an async result that a timer completes later, so a slow replica holds no
+ * Jetty thread while it waits.
+ *
+ * Configured per route with a spec such as "audit:p50=20,p99=500;send:fail=0.1;*:p90=100":
+ * pNN=ms gives the latency at that percentile, in between latencies are interpolated, starting
+ * from 0ms at p0 unless p0 is given. fail is the fraction of requests refused with an error.
+ * Routes are register, check, audit, send, receive, ping and writeback, * applies to the others.
+ */
+public class FaultInjector {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hds-fault-injector");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final FaultInjector NONE = new FaultInjector(Collections.emptyMap());
+
+    private final Map<String, Profile> profiles;
+
+    private FaultInjector(Map<String, Profile> profiles) {
+        this.profiles = profiles;
+    }
+
+    public static FaultInjector none() {
+        return NONE;
+    }
+
+    /* Every route answers after the same number of seconds, what the old delay argument did */
+    public static FaultInjector fixedDelay(int seconds) {
+        return parse("*:p0=" + seconds * 1000);
+    }
+
+    public static FaultInjector parse(String spec) {
+        Map<String, Profile> profiles = new HashMap<>();
+        for (String entry : spec.split(";")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            int colon = entry.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Expected route:settings, got " + entry);
+            }
+            profiles.put(entry.substring(0, colon).trim(), Profile.parse(entry.substring(colon + 1)));
+        }
+        return new FaultInjector(profiles);
+    }
+
+    /* Throws for the fraction of requests that should fail, before they change anything */
+    public void beforeRequest(String route) throws InjectedFaultException {
+        Profile profile = profileOf(route);
+        if (profile != null && profile.failRate > 0 && ThreadLocalRandom.current().nextDouble() < profile.failRate) {
+            throw new InjectedFaultException("Injected fault on " + route);
+        }
+    }
+
+    public long sampleDelay(String route) {
+        return delayAt(route, ThreadLocalRandom.current().nextDouble() * 100);
+    }
+
+    /* The latency route is configured with at percentile, from 0 to 100 */
+    public long delayAt(String route, double percentile) {
+        Profile profile = profileOf(route);
+        return profile == null ? 0 : profile.sample(percentile);
+    }
+
+    /* Writes body now, or after the sampled delay without blocking the request thread */
+    public void respond(Context ctx, String route, byte[] body) throws IOException {
+        ctx.contentType("application/json");
+        long delay = sampleDelay(route);
+        if (delay <= 0) {
+            ctx.response().setContentLength(body.length);
+            ctx.response().getOutputStream().write(body);
+            return;
+        }
+        CompletableFuture<InputStream> delayed = new CompletableFuture<>();
+        timer.schedule(() -> delayed.complete(new ByteArrayInputStream(body)), delay, TimeUnit.MILLISECONDS);
+        ctx.result(delayed);
+    }
+
+    public boolean isEnabled() {
+        return !profiles.isEmpty();
+    }
+
+    private Profile profileOf(String route) {
+        Profile profile = profiles.get(route);
+        return profile != null ? profile : profiles.get("*");
+    }
+
+    @Override
+    public String toString() {
+        return profiles.toString();
+    }
+
+    private static class Profile {
+        // Percentiles in increasing order, with the latency at each of them
+        private final double[] percentiles;
+        private final long[] millis;
+        private final double failRate;
+
+        private Profile(double[] percentiles, long[] millis, double failRate) {
+            this.percentiles = percentiles;
+            this.millis = millis;
+            this.failRate = failRate;
+        }
+
+        static Profile parse(String settings) {
+            TreeMap<Double, Long> points = new TreeMap<>();
+            double failRate = 0;
+            for (String setting : settings.split(",")) {
+                String[] pair = setting.trim().split("=");
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Expected key=value, got " + setting);
+                }
+                String key = pair[0].trim();
+                String value = pair[1].trim();
+                if (key.equals("fail")) {
+                    failRate = Double.parseDouble(value);
+                    if (failRate < 0 || failRate > 1) {
+                        throw new IllegalArgumentException("fail must be between 0 and 1, got " + value);
+                    }
+                } else if (key.startsWith("p")) {
+                    double percentile = Double.parseDouble(key.substring(1));
+                    long latency = Long.parseLong(value);
+                    if (percentile < 0 || percentile > 100 || latency < 0) {
+                        throw new IllegalArgumentException("Invalid latency " + setting);
+                    }
+                    points.put(percentile, latency);
+                } else {
+                    throw new IllegalArgumentException("Unknown setting " + key);
+                }
+            }
+            if (!points.isEmpty()) {
+                points.putIfAbsent(0.0, 0L);
+            }
+            double[] percentiles = new double[points.size()];
+            long[] millis = new long[points.size()];
+            int i = 0;
+            for (Map.Entry<Double, Long> point : points.entrySet()) {
+                percentiles[i] = point.getKey();
+                millis[i] = point.getValue();
+                i++;
+            }
+            return new Profile(percentiles, millis, failRate);
+        }
+
+        /* Latency at percentile, past the last given percentile it stays at the last latency */
+        long sample(double percentile) {
+            if (percentiles.length == 0) {
+                return 0;
+            }
+            for (int i = 1; i < percentiles.length; i++) {
+                if (percentile < percentiles[i]) {
+                    double fraction = (percentile - percentiles[i-1]) / (percentiles[i] - percentiles[i-1]);
+                    return Math.round(millis[i-1] + fraction * (millis[i] - millis[i-1]));
+                }
+            }
+            return millis[millis.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder description = new StringBuilder();
+            for (int i = 0; i < percentiles.length; i++) {
+                description.append("p").append(percentiles[i]).append("=").append(millis[i]).append("ms ");
+            }
+            return description.append("fail=").append(failRate).toString();
+        }
+    }
+}
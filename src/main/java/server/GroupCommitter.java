@@ -0,0 +1,143 @@
+package server;
+
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.support.ConnectionSource;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/*
+ * Runs the database writes of every ledger operation on a single thread, inside one JDBC transaction.
+ * Operations that queue up while a commit is in progress are folded into the next transaction, so
+ * under load many operations share one commit. If a shared commit fails, its operations are retried
+ * one per transaction so a single bad operation cannot take the others down with it.
+ * Once shut down it refuses new work rather than queueing it for a thread that is gone.
+ */
+public class GroupCommitter {
+    private final ConnectionSource connectionSource;
+    private final int maxBatch;
+    private final BlockingQueue<Write<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private final Write<Void> stop = new Write<>(null);
+    private boolean stopped; // Guarded by queue, so nothing is queued behind stop
+
+    public GroupCommitter(ConnectionSource connectionSource, int maxBatch) {
+        this.connectionSource = connectionSource;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.worker = new Thread(this::run, "hds-committer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /* Blocks until the work is committed, then returns its result */
+    public <T> T submit(Callable<T> work) throws SQLException {
+        if (Thread.currentThread() == worker) {
+            return TransactionManager.callInTransaction(connectionSource, work);
+        }
+        Write<T> write = new Write<>(work);
+        synchronized (queue) {
+            if (stopped) {
+                throw new SQLException("The committer was shut down");
+            }
+            queue.add(write);
+        }
+        try {
+            return write.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for commit", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    /* Commits everything already queued, then stops the commit thread */
+    public void shutdown() {
+        synchronized (queue) {
+            if (!stopped) {
+                stopped = true;
+                queue.add(stop);
+            }
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Write<?>> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch, maxBatch - batch.size());
+            stopping = batch.remove(stop);
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Write<?>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (batch.size() > 1) {
+            try {
+                List<Object> results = TransactionManager.callInTransaction(connectionSource, () -> {
+                    List<Object> values = new ArrayList<>(batch.size());
+                    for (Write<?> write : batch) {
+                        values.add(call(write.work));
+                    }
+                    return values;
+                });
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).complete(results.get(i));
+                }
+                return;
+            } catch (Throwable e) {
+                // Fall through and isolate the failing write
+            }
+        }
+        for (Write<?> write : batch) {
+            try {
+                write.complete(TransactionManager.callInTransaction(connectionSource, () -> call(write.work)));
+            } catch (Throwable e) {
+                // Every write gets its answer, whatever the one before it threw
+                write.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /* ORMLite only rolls back on exceptions, an Error would leave the transaction to be committed when it restores auto-commit */
+    private static <T> T call(Callable<T> work) throws Exception {
+        try {
+            return work.call();
+        } catch (Error e) {
+            throw new SQLException("Write failed", e);
+        }
+    }
+
+    private static class Write<T> {
+        private final Callable<T> work;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private Write(Callable<T> work) {
+            this.work = work;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void complete(Object value) {
+            result.complete((T) value);
+        }
+    }
+}
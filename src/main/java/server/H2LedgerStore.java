@@ -0,0 +1,477 @@
+package server;
+
+import com.j256.ormlite.dao.CloseableIterator;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.stmt.PreparedUpdate;
+import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.SelectArg;
+import com.j256.ormlite.stmt.UpdateBuilder;
+import com.j256.ormlite.table.TableUtils;
+import server.domain.Account;
+import server.domain.ChainHead;
+import server.domain.Transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.file.Paths;
+import java.security.PublicKey;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static server.LedgerRecords.*;
+
+/*
+ * The ledger in an H2 database file under db/, through ORMLite, with writes group committed.
+ * H2 writes its commits to disk in the background, so every write is first appended to a write-ahead log
+ * next to the database, db/<name><port>.wal, and forced to disk along with the writes queued with it.
+ * On start whatever the log holds is applied again, skipping the operations the database already has,
+ * and once the log grows past hds.wal.maxBytes H2 is made to sync and the log is emptied.
+ */
+public class H2LedgerStore implements LedgerStore {
+    private static final byte ACCOUNT = 1;
+    private static final byte SEND = 2;
+    private static final byte RECEIVE = 3;
+    private static final byte CHAIN = 4;
+
+    private Dao<Account, String> accounts;
+    private Dao<Transaction, String> transactions;
+    private MeteredConnectionSource connectionSource;
+    private GroupCommitter committer;
+    private WriteAheadLog wal;
+    private final long walBytes = Long.getLong("hds.wal.maxBytes", 16 << 20);
+    // Writes hold it shared from the log to the commit, emptying the log takes it exclusively
+    private final ReadWriteLock appending = new ReentrantReadWriteLock();
+    // Every transactionHash and senderSigHash stored, so replay checks only query when a match is possible
+    private BloomFilter signatures = new BloomFilter(1 << 20, 0.01);
+    private BloomFilter senderSignatures = new BloomFilter(1 << 20, 0.01);
+
+    // Column updates prepared once and only ever run on the committer thread
+    private SelectArg lastId = new SelectArg();
+    private SelectArg lastValue = new SelectArg();
+    private PreparedUpdate<Transaction> setLast;
+    private SelectArg receivedId = new SelectArg();
+    private PreparedUpdate<Transaction> setReceived;
+    private SelectArg amountKeyHash = new SelectArg();
+    private SelectArg amountValue = new SelectArg();
+    private PreparedUpdate<Account> setAmount;
+
+    public H2LedgerStore(String databaseName) throws SQLException {
+        // Servers on the same machine keep their databases apart by port
+        connectionSource = new MeteredConnectionSource("jdbc:h2:./db/" + databaseName + Application.port,
+                Integer.getInteger("hds.pool.min", 2),
+                Integer.getInteger("hds.pool.max", 16),
+                Long.getLong("hds.pool.idleMillis", 5 * 60 * 1000L),
+                Long.getLong("hds.pool.checkMillis", 30 * 1000L),
+                Long.getLong("hds.pool.timeoutMillis", 10 * 1000L));
+        accounts = DaoManager.createDao(connectionSource, Account.class);
+        transactions = DaoManager.createDao(connectionSource, Transaction.class);
+
+        try {
+            TableUtils.createTable(connectionSource, Account.class);
+            TableUtils.createTable(connectionSource, Transaction.class);
+        } catch (SQLException e) {
+            System.out.println("Table already exists, skipping...");
+            migrate();
+        }
+        loadSignatures();
+        prepareUpdates();
+        committer = new GroupCommitter(connectionSource, Integer.getInteger("hds.commit.batch", 64));
+        try {
+            wal = new WriteAheadLog(Paths.get("db", databaseName + Application.port + ".wal"));
+            int replayed = wal.replay(this::redo);
+            if (replayed > 0) {
+                System.out.println("Replayed " + replayed + " operations from the write-ahead log");
+            }
+        } catch (IOException e) {
+            throw new SQLException("Couldn't open the write-ahead log of " + databaseName, e);
+        }
+        checkpoint();
+    }
+
+    private void prepareUpdates() {
+        try {
+            UpdateBuilder<Transaction, String> last = transactions.updateBuilder();
+            last.updateColumnValue("last", lastValue).where().eq("id", lastId);
+            setLast = last.prepare();
+
+            UpdateBuilder<Transaction, String> received = transactions.updateBuilder();
+            received.updateColumnValue("pending", false).where().eq("id", receivedId);
+            setReceived = received.prepare();
+
+            UpdateBuilder<Account, String> amount = accounts.updateBuilder();
+            amount.updateColumnValue("amount", amountValue).where().eq("keyHash", amountKeyHash);
+            setAmount = amount.prepare();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Brings databases created by older versions up to the current schema */
+    private void migrate() {
+        try {
+            migrateAccountKeys();
+
+            transactions.executeRaw("ALTER TABLE `transactions` ADD COLUMN IF NOT EXISTS `sequence` INTEGER DEFAULT 0 NOT NULL");
+            transactions.executeRaw("UPDATE `transactions` SET `sequence` = CAST(SUBSTRING(`id`, 1, LOCATE('-', `id`) - 1) AS INTEGER) WHERE `sequence` = 0");
+            transactions.executeRaw("CREATE INDEX IF NOT EXISTS `transactions_owner_sequence_idx` ON `transactions` (`owner_id`, `sequence`)");
+
+            transactions.executeRaw("ALTER TABLE `transactions` ADD COLUMN IF NOT EXISTS `senderSigHash` VARCHAR(255)");
+            transactions.executeRaw("ALTER TABLE `transactions` ADD COLUMN IF NOT EXISTS `senderTransactionId` VARCHAR(255)");
+            for (Transaction transaction : transactions.queryBuilder().where().eq("receiving", true).and().isNull("senderSigHash").query()) {
+                UpdateBuilder<Transaction, String> update = transactions.updateBuilder();
+                update.updateColumnValue("senderSigHash", HDSCrypto.hashToString(transaction.getSenderSig())).where().idEq(transaction.getId());
+                update.update();
+            }
+            // A send's transactionHash is the hash of the signature its receive stores as senderSig
+            transactions.executeRaw("UPDATE `transactions` r SET `senderTransactionId` = (SELECT s.`id` FROM `transactions` s " +
+                    "WHERE s.`transactionHash` = r.`senderSigHash`) WHERE r.`receiving` = TRUE AND r.`senderTransactionId` IS NULL");
+            transactions.executeRaw("CREATE UNIQUE INDEX IF NOT EXISTS `transactions_transactionHash_idx` ON `transactions` (`transactionHash`)");
+            long uniqueSenderSigHash = transactions.queryRawValue("SELECT COUNT(*) FROM INFORMATION_SCHEMA.INDEXES " +
+                    "WHERE UPPER(INDEX_NAME) = 'TRANSACTIONS_SENDERSIGHASH_IDX' AND NON_UNIQUE = FALSE");
+            if (uniqueSenderSigHash > 0) {
+                transactions.executeRaw("DROP INDEX `transactions_senderSigHash_idx`");
+            }
+            transactions.executeRaw("CREATE INDEX IF NOT EXISTS `transactions_senderSigHash_idx` ON `transactions` (`senderSigHash`)");
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Keys used to be stored Java-serialized in `key`, they are now kept as their X.509 encoding */
+    private void migrateAccountKeys() throws SQLException {
+        accounts.executeRaw("ALTER TABLE `accounts` ADD COLUMN IF NOT EXISTS `encodedKey` VARBINARY");
+        long serialized = accounts.queryRawValue("SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS " +
+                "WHERE UPPER(TABLE_NAME) = 'ACCOUNTS' AND UPPER(COLUMN_NAME) = 'KEY'");
+        if (serialized == 0) {
+            return;
+        }
+        GenericRawResults<Object[]> rows = accounts.queryRaw("SELECT `keyHash`, `key` FROM `accounts` WHERE `encodedKey` IS NULL",
+                new DataType[]{DataType.STRING, DataType.BYTE_ARRAY});
+        boolean converted = true;
+        try {
+            for (Object[] row : rows) {
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream((byte[]) row[1]))) {
+                    PublicKey key = (PublicKey) in.readObject();
+                    UpdateBuilder<Account, String> update = accounts.updateBuilder();
+                    update.updateColumnValue("encodedKey", key.getEncoded()).where().eq("keyHash", new SelectArg(row[0]));
+                    update.update();
+                } catch (IOException | ClassNotFoundException e) {
+                    e.printStackTrace();
+                    converted = false;
+                }
+            }
+        } finally {
+            rows.close();
+        }
+        // Keep the old column around if any key could not be read, so nothing is lost
+        if (converted) {
+            accounts.executeRaw("ALTER TABLE `accounts` DROP COLUMN `key`");
+        }
+    }
+
+    private void loadSignatures() {
+        try {
+            GenericRawResults<String[]> rows = transactions.queryRaw("SELECT `transactionHash`, `senderSigHash` FROM `transactions`");
+            try {
+                for (String[] row : rows) {
+                    signatures.put(row[0]);
+                    senderSignatures.put(row[1]);
+                }
+            } finally {
+                rows.close();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public Account findAccount(String keyHash) throws SQLException {
+        return accounts.queryForId(keyHash);
+    }
+
+    @Override
+    public Transaction findTransaction(String id) throws SQLException {
+        return transactions.queryForId(id);
+    }
+
+    @Override
+    public Transaction findTransactionByHash(String transactionHash) throws SQLException {
+        if (!signatures.mightContain(transactionHash)) {
+            return null;
+        }
+        return transactions.queryBuilder().where().eq("transactionHash", new SelectArg(transactionHash)).queryForFirst();
+    }
+
+    @Override
+    public boolean isReceived(String senderSigHash) throws SQLException {
+        if (!senderSignatures.mightContain(senderSigHash)) {
+            return false;
+        }
+        return transactions.queryBuilder().where().eq("senderSigHash", new SelectArg(senderSigHash)).countOf() > 0;
+    }
+
+    @Override
+    public List<Transaction> findPendingIncoming(String keyHash) throws SQLException {
+        return transactions.queryBuilder().where().eq("pending", true).and().eq("receiving", false).and().eq("to_id", new SelectArg(keyHash)).query();
+    }
+
+    @Override
+    public List<Transaction> findChain(String keyHash, int fromSequence) throws SQLException {
+        return transactions.queryBuilder().orderBy("sequence", true)
+                .where().eq("owner_id", new SelectArg(keyHash)).and().ge("sequence", fromSequence).query();
+    }
+
+    @Override
+    public Cursor<Transaction> iterateChain(String keyHash, int fromSequence, int pageSize) throws SQLException {
+        QueryBuilder<Transaction, String> query = transactions.queryBuilder().orderBy("sequence", true);
+        query.where().eq("owner_id", new SelectArg(keyHash)).and().ge("sequence", fromSequence);
+        if (pageSize > 0) {
+            query.limit((long) pageSize);
+        }
+        // Rows are read from the database as the cursor advances
+        CloseableIterator<Transaction> rows = transactions.iterator(query.prepare());
+        return new Cursor<Transaction>() {
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public Transaction next() {
+                return rows.next();
+            }
+
+            @Override
+            public void close() {
+                rows.closeQuietly();
+            }
+        };
+    }
+
+    @Override
+    public boolean hasTransactionAt(String keyHash, int sequence, String transactionHash) throws SQLException {
+        return transactions.queryBuilder().where().eq("owner_id", new SelectArg(keyHash)).and().eq("sequence", sequence)
+                .and().eq("transactionHash", new SelectArg(transactionHash)).countOf() > 0;
+    }
+
+    @Override
+    public List<Transaction> findChainHeads() throws SQLException {
+        // The last flag is kept on the newest transaction of each chain, one row per account
+        return transactions.queryBuilder().where().eq("last", true).query();
+    }
+
+    @Override
+    public void createAccount(Account account) throws SQLException {
+        write(ACCOUNT, out -> {
+            out.writeUTF(account.getKeyHash());
+            writeBytes(out, account.getEncodedKey());
+            out.writeInt(account.getAmount());
+        }, () -> accounts.create(account));
+    }
+
+    @Override
+    public void appendSend(Transaction send, ChainHead previous, Account source) throws SQLException {
+        write(SEND, out -> {
+            writeTransaction(out, send);
+            writeOptional(out, previous == null ? null : previous.getTransactionId());
+            out.writeUTF(source.getKeyHash());
+            out.writeInt(source.getAmount());
+        }, () -> storeSend(send, previous, source));
+    }
+
+    @Override
+    public void appendReceive(Transaction receive, Transaction sent, ChainHead previous, Account dest) throws SQLException {
+        write(RECEIVE, out -> {
+            writeTransaction(out, receive);
+            out.writeUTF(sent.getId());
+            writeOptional(out, previous == null ? null : previous.getTransactionId());
+            out.writeUTF(dest.getKeyHash());
+            out.writeInt(dest.getAmount());
+        }, () -> storeReceive(receive, sent.getId(), previous, dest));
+    }
+
+    @Override
+    public void appendChain(List<Transaction> added, ChainHead previous) throws SQLException {
+        write(CHAIN, out -> {
+            writeOptional(out, previous == null ? null : previous.getTransactionId());
+            out.writeInt(added.size());
+            for (Transaction t : added) {
+                writeTransaction(out, t);
+            }
+        }, () -> storeChain(added, previous));
+    }
+
+    /* Logs the operation, commits it, and cancels it in the log if the commit failed */
+    private void write(byte type, Encoder operation, Callable<?> work) throws SQLException {
+        appending.readLock().lock();
+        try {
+            long sequence = wal.append(type, operation);
+            try {
+                committer.submit(work);
+            } catch (SQLException e) {
+                wal.cancel(sequence);
+                throw e;
+            }
+        } finally {
+            appending.readLock().unlock();
+        }
+        try {
+            if (wal.size() > walBytes) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* Applies a logged operation again, unless the database already has it. Commits keep their order, so it has all before it */
+    private boolean redo(byte type, DataInputStream in) throws IOException, SQLException {
+        switch (type) {
+            case ACCOUNT: {
+                Account account = new Account(in.readUTF(), readBytes(in), in.readInt());
+                if (findAccount(account.getKeyHash()) != null) {
+                    return false;
+                }
+                committer.submit(() -> accounts.create(account));
+                return true;
+            }
+            case SEND: {
+                Transaction send = readTransaction(in);
+                ChainHead previous = previousOf(readOptional(in));
+                Account source = new Account(in.readUTF(), null, in.readInt());
+                if (findTransaction(send.getId()) != null) {
+                    return false;
+                }
+                send.setLast(true);
+                committer.submit(() -> storeSend(send, previous, source));
+                return true;
+            }
+            case RECEIVE: {
+                Transaction receive = readTransaction(in);
+                String sentId = in.readUTF();
+                ChainHead previous = previousOf(readOptional(in));
+                Account dest = new Account(in.readUTF(), null, in.readInt());
+                if (findTransaction(receive.getId()) != null) {
+                    return false;
+                }
+                receive.setLast(true);
+                committer.submit(() -> storeReceive(receive, sentId, previous, dest));
+                return true;
+            }
+            case CHAIN: {
+                ChainHead previous = previousOf(readOptional(in));
+                List<Transaction> added = new ArrayList<>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    added.add(readTransaction(in));
+                }
+                if (findTransaction(added.get(0).getId()) != null) {
+                    return false;
+                }
+                committer.submit(() -> storeChain(added, previous));
+                return true;
+            }
+            default:
+                throw new IOException("Unknown operation " + type);
+        }
+    }
+
+    private static ChainHead previousOf(String id) {
+        return id == null ? null : new ChainHead(id, null, 0);
+    }
+
+    private Void storeSend(Transaction send, ChainHead previous, Account source) throws SQLException {
+        transactions.create(send);
+        clearLast(previous);
+        updateAmount(source);
+        signatures.put(send.getTransactionHash());
+        return null;
+    }
+
+    private Void storeReceive(Transaction receive, String sentId, ChainHead previous, Account dest) throws SQLException {
+        markReceived(sentId);
+        clearLast(previous);
+        transactions.create(receive);
+        updateAmount(dest);
+        signatures.put(receive.getTransactionHash());
+        senderSignatures.put(receive.getSenderSigHash());
+        return null;
+    }
+
+    private Void storeChain(List<Transaction> added, ChainHead previous) throws SQLException {
+        for (Transaction t : added) {
+            transactions.create(t);
+        }
+        clearLast(previous);
+        updateLast(added.get(added.size() - 1).getId(), true);
+        for (Transaction t : added) {
+            signatures.put(t.getTransactionHash());
+            senderSignatures.put(t.getSenderSigHash());
+        }
+        return null;
+    }
+
+    /* Has H2 sync everything committed to disk, after which the log isn't needed to recover it */
+    private void checkpoint() {
+        appending.writeLock().lock();
+        try {
+            if (wal.size() > 0) {
+                transactions.executeRaw("CHECKPOINT SYNC");
+                wal.truncate();
+            }
+        } catch (SQLException | IOException e) {
+            e.printStackTrace();
+        } finally {
+            appending.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        checkpoint();
+        wal.close();
+        committer.shutdown();
+        try {
+            connectionSource.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return connectionSource.toString();
+    }
+
+    private void markReceived(String id) throws SQLException {
+        receivedId.setValue(id);
+        transactions.update(setReceived);
+    }
+
+    private void clearLast(ChainHead head) throws SQLException {
+        if (head != null) {
+            updateLast(head.getTransactionId(), false);
+        }
+    }
+
+    private void updateLast(String id, boolean last) throws SQLException {
+        lastId.setValue(id);
+        lastValue.setValue(last);
+        transactions.update(setLast);
+    }
+
+    private void updateAmount(Account account) throws SQLException {
+        amountKeyHash.setValue(account.getKeyHash());
+        amountValue.setValue(account.getAmount());
+        accounts.update(setAmount);
+    }
+}
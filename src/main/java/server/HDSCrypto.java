@@ -4,19 +4,49 @@ import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
 import java.util.Base64;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class HDSCrypto {
 	
-	public static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss");
+	/*
+	 * Timestamps are the fixed-width local time "yyyy.MM.dd.HH.mm.ss". They are parsed by hand instead of
+	 * through a shared SimpleDateFormat, which is not thread-safe, so requests can parse them concurrently
+	 * without locking or going through a Calendar.
+	 */
+	private static final int TIMESTAMP_LENGTH = 19;
+	private static final ZoneRules zone = ZoneId.systemDefault().getRules();
+
+	// Least recently used keys are dropped past hds.cache.keys, like AccountCache drops accounts
+	private static final int MAX_CACHED_KEYS = Integer.getInteger("hds.cache.keys", 100000);
+	@SuppressWarnings("serial")
+	private static final Map<String, PublicKey> publicKeys = new LinkedHashMap<String, PublicKey>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PublicKey> eldest) {
+			return size() > MAX_CACHED_KEYS;
+		}
+	};
 	
 	public static boolean validateTimestamp(Date receivedDate, Date timeSent) {
-		//String time = dateFormat.format(timeSent);
-		//Date sentDate = dateFormat.parse(time);
-		long diff = receivedDate.getTime() - timeSent.getTime();
+		return validateTimestamp(receivedDate.getTime(), timeSent.getTime());
+	}
+
+	/* A timestamp that can't be parsed is never fresh */
+	public static boolean validateTimestamp(Date receivedDate, String timestamp) {
+		long timeSent = parseTimestamp(timestamp);
+		return timeSent != -1 && validateTimestamp(receivedDate.getTime(), timeSent);
+	}
+
+	private static boolean validateTimestamp(long received, long sent) {
+		long diff = received - sent;
 		long diffSeconds = diff / 1000;
 		if( diffSeconds < -60 || diffSeconds > 60 ){
 			return false;
@@ -39,38 +69,80 @@ public class HDSCrypto {
 		return keyGen.generateKeyPair();
 	}
 	
-	public static Signature createSignature(PrivateKey priv) throws InvalidKeyException{
-		Signature s = null;
+	/*
+	 * Signature and MessageDigest lookups go through the provider list and allocate new engines, so each
+	 * thread keeps its own instances. A Signature returned here is only valid until the same thread asks
+	 * for another one, which is how every caller already uses them.
+	 */
+	private static final ThreadLocal<Signature> signatures = ThreadLocal.withInitial(() -> newSignature());
+	private static final ThreadLocal<MessageDigest> digesters = ThreadLocal.withInitial(() -> newDigester());
+
+	private static Signature newSignature() {
 		try {
-			s = Signature.getInstance("SHA256withECDSA");
+			return Signature.getInstance("SHA256withECDSA");
 		} catch (NoSuchAlgorithmException e) {
 			e.printStackTrace();
 		}
-		s.initSign(priv);
-		return s;
+		return null;
 	}
-	
-	public static Signature verifySignature(PublicKey pub) throws InvalidKeyException {
-		Signature s = null;
+
+	private static MessageDigest newDigester() {
 		try {
-			s = Signature.getInstance("SHA256withECDSA");
+			return MessageDigest.getInstance("SHA-256");
 		} catch (NoSuchAlgorithmException e) {
 			e.printStackTrace();
 		}
+		return null;
+	}
+
+	public static Signature createSignature(PrivateKey priv) throws InvalidKeyException{
+		Signature s = signatures.get();
+		s.initSign(priv);
+		return s;
+	}
+	
+	public static Signature verifySignature(PublicKey pub) throws InvalidKeyException {
+		Signature s = signatures.get();
 		s.initVerify(pub);
 		return s;
 	}
 	
 	
+	public static String hashToString(byte[] data) {
+		MessageDigest digester = digesters.get();
+		digester.reset();
+		return Base64.getEncoder().encodeToString(digester.digest(data));
+	}
+
 	public static String publicKeyToString(PublicKey key){
 		return new String(Base64.getEncoder().encode(key.getEncoded()));
 	}
 
 	public static PublicKey stringToPublicKey(String key) {
-		X509EncodedKeySpec keySpec = new X509EncodedKeySpec(Base64.getDecoder().decode(key));
+		return decodePublicKey(Base64.getDecoder().decode(key));
+	}
+
+	public static PublicKey decodePublicKey(byte[] encoded) {
+		return decodePublicKey(hashToString(encoded), encoded);
+	}
+
+	/* Decoded keys are shared by keyHash, so each key goes through the KeyFactory once */
+	public static PublicKey decodePublicKey(String keyHash, byte[] encoded) {
+		PublicKey key;
+		synchronized (publicKeys) {
+			key = publicKeys.get(keyHash);
+		}
+		if (key != null) {
+			return key;
+		}
+		X509EncodedKeySpec keySpec = new X509EncodedKeySpec(encoded);
 		try {
 			KeyFactory keyFactory = KeyFactory.getInstance("EC", "SunEC");
-			return keyFactory.generatePublic(keySpec);
+			key = keyFactory.generatePublic(keySpec);
+			synchronized (publicKeys) {
+				publicKeys.put(keyHash, key);
+			}
+			return key;
 		} catch (NoSuchAlgorithmException e) {
 			e.printStackTrace();
 		} catch (NoSuchProviderException e) {
@@ -97,15 +169,76 @@ public class HDSCrypto {
 	}
 
 	public static Date stringToDate(String timestamp) {
-		try {
-			return dateFormat.parse(timestamp);
-		} catch (ParseException e) {
-			e.printStackTrace();
-		}
-		return null;
+		long millis = parseTimestamp(timestamp);
+		return millis == -1 ? null : new Date(millis);
 	}
 
 	public static String dateToString(Date timestamp) {
-		return dateFormat.format(timestamp);
+		long seconds = Math.floorDiv(timestamp.getTime(), 1000);
+		LocalDateTime local = LocalDateTime.ofEpochSecond(seconds, 0, zone.getOffset(Instant.ofEpochSecond(seconds)));
+		char[] out = new char[TIMESTAMP_LENGTH];
+		writeDigits(out, 0, 4, local.getYear());
+		writeDigits(out, 5, 2, local.getMonthValue());
+		writeDigits(out, 8, 2, local.getDayOfMonth());
+		writeDigits(out, 11, 2, local.getHour());
+		writeDigits(out, 14, 2, local.getMinute());
+		writeDigits(out, 17, 2, local.getSecond());
+		out[4] = out[7] = out[10] = out[13] = out[16] = '.';
+		return new String(out);
+	}
+
+	/* Returns the timestamp in epoch milliseconds, or -1 if it isn't a valid "yyyy.MM.dd.HH.mm.ss" */
+	public static long parseTimestamp(String timestamp) {
+		if (timestamp == null || timestamp.length() != TIMESTAMP_LENGTH) {
+			return -1;
+		}
+		for (int i = 4; i < TIMESTAMP_LENGTH; i += 3) {
+			if (timestamp.charAt(i) != '.') {
+				return -1;
+			}
+		}
+		int year = readDigits(timestamp, 0, 4);
+		int month = readDigits(timestamp, 5, 2);
+		int day = readDigits(timestamp, 8, 2);
+		int hour = readDigits(timestamp, 11, 2);
+		int minute = readDigits(timestamp, 14, 2);
+		int second = readDigits(timestamp, 17, 2);
+		if (year < 1 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)
+				|| hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+			return -1;
+		}
+		// Around a DST change, pick the offset SimpleDateFormat did: the old one in a gap, the new one in an overlap
+		LocalDateTime local = LocalDateTime.of(year, month, day, hour, minute, second);
+		ZoneOffsetTransition transition = zone.getTransition(local);
+		ZoneOffset offset = transition == null ? zone.getOffset(local)
+				: transition.isGap() ? transition.getOffsetBefore() : transition.getOffsetAfter();
+		return local.toEpochSecond(offset) * 1000;
+	}
+
+	private static int readDigits(String s, int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			int digit = s.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private static void writeDigits(char[] out, int start, int count, int value) {
+		for (int i = start + count - 1; i >= start; i--) {
+			out[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+	private static int lengthOfMonth(int year, int month) {
+		if (month == 2) {
+			boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+			return leap ? 29 : 28;
+		}
+		return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
 	}
 }
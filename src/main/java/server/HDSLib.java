@@ -2,13 +2,10 @@ package server;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.j256.ormlite.dao.Dao;
-import com.j256.ormlite.dao.DaoManager;
-import com.j256.ormlite.jdbc.JdbcConnectionSource;
-import com.j256.ormlite.support.ConnectionSource;
-import com.j256.ormlite.table.TableUtils;
+import common.BatchVerifier;
 import server.domain.Account;
 import server.domain.AccountState;
+import server.domain.ChainHead;
 import server.domain.Transaction;
 import server.exceptions.*;
 
@@ -16,59 +13,99 @@ import java.math.BigInteger;
 import java.security.*;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 
+/*
+ * Requests are checked on the threads they arrive on: arguments, timestamps and signatures, the expensive part.
+ * What depends on the ledger's current state, balances, chain heads and whether a send was received, is then
+ * checked and applied by the writer of the one account the request changes, see LedgerWriter.
+ */
 public class HDSLib {
-    private static HDSLib instance = null;
-    private Dao<Account, String> accounts;
-    private Dao<Transaction, String> transactions;
-    private ConnectionSource connectionSource;
+    // Read on every request, only opened and reset under the class lock
+    private static volatile HDSLib instance = null;
+    private static boolean shutDown = false;
+    // Which LedgerStore getInstance opens, set from the command line
+    private static String storeType = "h2";
+    private LedgerStore store;
+    private Map<String, ChainHead> chainHeads = new ConcurrentHashMap<>();
+    private LedgerWriter writer = new LedgerWriter(Integer.getInteger("hds.writer.shards", 32), Integer.getInteger("hds.writer.queue", 1024));
+    private AccountCache accountCache = new AccountCache(Integer.getInteger("hds.cache.accounts", 10000));
+
+    private HDSLib(LedgerStore store) {
+        this.store = store;
+        loadChainHeads();
+    }
 
-    private HDSLib(String databaseName) {
-        connectionSource = null;
+    /* Rebuilds the chain head index from the store, one transaction per account */
+    private void loadChainHeads() {
+        chainHeads.clear();
         try {
-        	// TODO: How to properly get port?
-            connectionSource = new JdbcConnectionSource("jdbc:h2:./db/" + databaseName + Application.port);
-            accounts = DaoManager.createDao(connectionSource, Account.class);
-            transactions = DaoManager.createDao(connectionSource, Transaction.class);
+            for (Transaction transaction : store.findChainHeads()) {
+                chainHeads.put(transaction.getOwner().getKeyHash(), new ChainHead(transaction));
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
+    }
 
+    private static HDSLib open(String type, String name) {
         try {
-            TableUtils.createTable(connectionSource, Account.class);
-            TableUtils.createTable(connectionSource, Transaction.class);
+            return new HDSLib(LedgerStore.open(type, name));
         } catch (SQLException e) {
-            System.out.println("Table already exists, skipping...");
+            throw new IllegalStateException("Couldn't open the " + type + " ledger store", e);
         }
     }
 
+    public static void setStore(String type) {
+        storeType = type;
+    }
+
     public static HDSLib getInstance() {
-        if (instance == null) {
-            instance = new HDSLib("database");
-        }
-        return instance;
+        HDSLib opened = instance;
+        return opened != null ? opened : openInstance(storeType, "database");
     }
 
+    /* Tests run on the memory store unless hds.test.store says otherwise */
     public static HDSLib getTestingInstance() {
+        return getTestingInstance(System.getProperty("hds.test.store", "memory"));
+    }
+
+    public static HDSLib getTestingInstance(String type) {
+        HDSLib opened = instance;
+        return opened != null ? opened : openInstance(type, "test");
+    }
+
+    /* Two requests arriving before the ledger is open must not open it twice */
+    private static synchronized HDSLib openInstance(String type, String name) {
+        if (shutDown) {
+            throw new IllegalStateException("The ledger was shut down");
+        }
         if (instance == null) {
-            instance = new HDSLib("test");
+            instance = open(type, name);
         }
         return instance;
     }
 
-    public static void forceReset() {
+    /* Applies the queued writes and closes the store, after which the ledger can't be opened again */
+    public static synchronized void shutdown() {
+        shutDown = true;
+        if (instance != null) {
+            instance.destroy();
+            instance = null;
+        }
+    }
+
+    public static synchronized void forceReset() {
         // For testing purposes
         instance.destroy();
         instance = null;
     }
 
     public void destroy() {
-        try {
-            connectionSource.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        writer.shutdown();
+        store.close();
     }
 
     public Account register(PublicKey key, String timestamp, byte[] sig) throws KeyAlreadyRegistered, TimestampNotFreshException, InvalidSignatureException, NullArgumentException {
@@ -79,12 +116,13 @@ public class HDSLib {
 			checkNullTimestamp(timestamp);
 			checkNullSignature(sig);
         	
-            Account account = new Account(key);
-            if (accounts.queryForId(account.getKeyHash()) != null) {
+            byte[] encodedKey = key.getEncoded();
+            Account account = new Account(HDSCrypto.hashToString(encodedKey), encodedKey, 100);
+            if (getAccount(account.getKeyHash()) != null) {
                 throw new KeyAlreadyRegistered("The following key is already registered: " + key);
             }
 
-            if (!HDSCrypto.validateTimestamp(timeReceived, HDSCrypto.stringToDate(timestamp))) {
+            if (!HDSCrypto.validateTimestamp(timeReceived, timestamp)) {
             	throw new TimestampNotFreshException("Timestamp not fresh");
             }
 			Signature s = HDSCrypto.verifySignature(key);
@@ -92,10 +130,19 @@ public class HDSLib {
             if(!s.verify(sig)){
             	throw new InvalidSignatureException("Signature not valid");
             }
-            
-            accounts.create(account);
-            return account;
-        } catch (SQLException | SignatureException | InvalidKeyException e) {
+
+            return writer.submit(account.getKeyHash(), () -> {
+                if (getAccount(account.getKeyHash()) != null) {
+                    throw new KeyAlreadyRegistered("The following key is already registered: " + key);
+                }
+                store.createAccount(account);
+                accountCache.put(account);
+                return account;
+            });
+        } catch (ExecutionException e) {
+            rethrow(e, KeyAlreadyRegistered.class);
+            e.getCause().printStackTrace();
+        } catch (SignatureException | InvalidKeyException e) {
             e.printStackTrace();
         }
 		return null;
@@ -122,11 +169,11 @@ public class HDSLib {
         } else if (sourceKeyHash.equals(destKeyHash)) {
 	    	throw new SameSourceAndDestAccountException();
 	    }
-        if (!HDSCrypto.validateTimestamp(timeReceived, HDSCrypto.stringToDate(timestamp))) {
+        if (!HDSCrypto.validateTimestamp(timeReceived, timestamp)) {
         	throw new TimestampNotFreshException("Timestamp not fresh: " + timestamp);
 		}
 
-		Signature s = HDSCrypto.verifySignature(sourceAccount.getKey());
+		Signature s = HDSCrypto.verifySignature(keyOf(sourceAccount));
 		s.update(sourceKeyHash.getBytes());
 		s.update(destKeyHash.getBytes());
 		s.update(BigInteger.valueOf(amount).toByteArray());
@@ -136,51 +183,50 @@ public class HDSLib {
 			throw new InvalidSignatureException("Signature not valid");
 		}
 
-		// Check for repeated transactions, verify the amount and then update it atomically
-		synchronized (this) {
-			if (getTransactionBySig(sig) != null) {
-				throw new RepeatedTransactionException();
-			}
-
-			if (sourceAccount.getAmount() < amount) {
-				throw new AccountInsufficientAmountException();
-			}
+		// Check for repeated transactions, verify the amount and then update it, on the source's writer
+		final Account dest = destAccount;
+		String transactionHash = HDSCrypto.hashToString(sig);
+		try {
+			return writer.submit(sourceKeyHash, () -> {
+				if (store.findTransactionByHash(transactionHash) != null) {
+					throw new RepeatedTransactionException();
+				}
 
-			String actualPreviousTransactionHash = null;
-			Transaction actualPreviousTransaction = null;
-			try {
-				if (transactions.queryBuilder().where().eq("owner_id", sourceKeyHash).query().size() > 0) {
-					actualPreviousTransaction = transactions.queryBuilder().where().eq("last", true).and().eq("owner_id", sourceKeyHash).queryForFirst();
-					actualPreviousTransactionHash = actualPreviousTransaction.getTransactionHash();
+				Account cached = getAccount(sourceKeyHash);
+				if (cached.getAmount() < amount) {
+					throw new AccountInsufficientAmountException();
 				}
-			} catch (SQLException e) {
-				e.printStackTrace();
-				return null;
-			}
 
-			String newId = "0-"+sourceKeyHash; // TODO: Just put the int in Transaction as well
-			if(actualPreviousTransaction != null){
-				newId = calculateNextId(actualPreviousTransaction);
-				if (!previousTransaction.equals(actualPreviousTransactionHash)){
-					throw new WrongPreviousTransactionException(previousTransaction, actualPreviousTransactionHash);
+				ChainHead head = chainHeads.get(sourceKeyHash);
+				String actualPreviousTransactionHash = null;
+				String newId = "0-"+sourceKeyHash;
+				if (head != null) {
+					actualPreviousTransactionHash = head.getTransactionHash();
+					newId = head.nextId(sourceKeyHash);
+					if (!previousTransaction.equals(actualPreviousTransactionHash)){
+						throw new WrongPreviousTransactionException(previousTransaction, actualPreviousTransactionHash);
+					}
 				}
-			}
 
-			Transaction transaction = new Transaction(newId, sourceAccount, destAccount, amount, timestamp, actualPreviousTransactionHash, sig);
-			sourceAccount.addAmount(-amount);
-			transaction.setLast(true);
-			if (actualPreviousTransaction != null) {
-				actualPreviousTransaction.setLast(false);
-			}
-			try {
-				transactions.create(transaction);
-				transactions.update(actualPreviousTransaction);
-				accounts.update(sourceAccount);
-				accounts.update(destAccount);
-				return transaction;
-			} catch (SQLException e) {
-				e.printStackTrace();
-			}
+				// Readers share the cached account, so the new balance goes on a copy until the store has it
+				Account source = new Account(sourceKeyHash, cached.getEncodedKey(), cached.getAmount() - amount);
+				Transaction transaction = new Transaction(newId, source, dest, amount, timestamp, actualPreviousTransactionHash, sig, transactionHash);
+				transaction.setLast(true);
+				try {
+					store.appendSend(transaction, head, source);
+					accountCache.update(source);
+					chainHeads.put(sourceKeyHash, new ChainHead(transaction));
+					return transaction;
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+				return null;
+			});
+		} catch (ExecutionException e) {
+			rethrow(e, RepeatedTransactionException.class);
+			rethrow(e, AccountInsufficientAmountException.class);
+			rethrow(e, WrongPreviousTransactionException.class);
+			e.getCause().printStackTrace();
 		}
         return null;
     }
@@ -194,7 +240,7 @@ public class HDSLib {
         }
         List<Transaction> pendingIncomingTransactions= null;
         try {
-            pendingIncomingTransactions = transactions.queryBuilder().where().eq("pending", true).and().eq("receiving", false).and().eq("to_id", keyHash).query();
+            pendingIncomingTransactions = store.findPendingIncoming(keyHash);
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -212,7 +258,7 @@ public class HDSLib {
             throw new TransactionNotFoundException("Transaction not found");
         }
 
-        if (!HDSCrypto.validateTimestamp(timeReceived, HDSCrypto.stringToDate(timestamp))) {
+        if (!HDSCrypto.validateTimestamp(timeReceived, timestamp)) {
         	throw new TimestampNotFreshException("Timestamp not fresh");
 		}
 		if (!Arrays.equals(transaction.getSig(),transactionSig)){
@@ -221,15 +267,10 @@ public class HDSLib {
 					"\nExpected: " +  new String(Base64.getEncoder().encode(transaction.getSig())));
 		}
 
-		//Account sourceAccount = transaction.getFrom();
-		Account destAccount = transaction.getTo();
-		try {
-			accounts.refresh(destAccount);
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}
+		String destKeyHash = transaction.getTo().getKeyHash();
+		Account destAccount = getAccount(destKeyHash);
 
-		Signature s = HDSCrypto.verifySignature(destAccount.getKey());
+		Signature s = HDSCrypto.verifySignature(keyOf(destAccount));
 		s.update(id.getBytes());
 		s.update(transactionSig);
 		s.update(previousTransaction.getBytes());
@@ -237,72 +278,91 @@ public class HDSLib {
 		if(!s.verify(sig)){
 			throw new InvalidSignatureException("Signature not valid");
 		}
-		// Make sure the transaction wasn't already received and complete it atomically
-		synchronized (this) {
-			try {
-				transactions.refresh(transaction);
-
-				if (transactions.queryBuilder().where().eq("senderSig", transactionSig).query().size() != 0) {
-					throw new TransactionAlreadyReceivedException("This transaction was already received: " + transaction.getId());
-				}
-
-				String actualPreviousTransactionHash = null;
-				Transaction actualPreviousTransaction = null;
+		// Make sure the transaction wasn't already received and complete it, on the destination's writer
+		try {
+			return writer.submit(destKeyHash, () -> {
 				try {
-					if (transactions.queryBuilder().where().eq("owner_id", destAccount.getKeyHash()).query().size() > 0) {
-						actualPreviousTransaction = transactions.queryBuilder().where().eq("last", true).and().eq("owner_id", destAccount.getKeyHash()).queryForFirst();
-						actualPreviousTransactionHash = actualPreviousTransaction.getTransactionHash();
+					Transaction sent = store.findTransaction(transaction.getId());
+					Account cached = getAccount(destKeyHash);
+
+					if (isReceived(sent)) {
+						throw new TransactionAlreadyReceivedException("This transaction was already received: " + transaction.getId());
 					}
-				} catch (SQLException e) {
-					e.printStackTrace();
-					return null;
-				}
 
-				String newId = "0-"+destAccount.getKeyHash();
-				if(actualPreviousTransaction != null){
-					if (!previousTransaction.equals(actualPreviousTransactionHash)){
-						throw new WrongPreviousTransactionException(previousTransaction, actualPreviousTransactionHash); // TODO: Test this exception
+					ChainHead head = chainHeads.get(destKeyHash);
+					String newId = "0-"+destKeyHash;
+					if (head != null) {
+						if (!previousTransaction.equals(head.getTransactionHash())){
+							throw new WrongPreviousTransactionException(previousTransaction, head.getTransactionHash()); // TODO: Test this exception
+						}
+						newId = head.nextId(destKeyHash);
 					}
-					newId = calculateNextId(actualPreviousTransaction);
-				}
 
-				destAccount.addAmount(transaction.getAmount());
-				Transaction newTransaction = Transaction.ReceiveTransaction(newId, transaction, timestamp, previousTransaction, sig);
-				newTransaction.setLast(true);
-				if (actualPreviousTransaction != null) {
-					actualPreviousTransaction.setLast(false);
-				}
+					Account dest = new Account(destKeyHash, cached.getEncodedKey(), cached.getAmount() + transaction.getAmount());
+					Transaction newTransaction = Transaction.ReceiveTransaction(newId, sent, timestamp, previousTransaction, sig, HDSCrypto.hashToString(sig));
+					newTransaction.setLast(true);
 
-				transactions.update(transaction);
-				transactions.update(actualPreviousTransaction);
-				transactions.create(newTransaction);
-				accounts.update(destAccount);
-				return transaction;
+					store.appendReceive(newTransaction, sent, head, dest);
+					accountCache.update(dest);
+					chainHeads.put(destKeyHash, new ChainHead(newTransaction));
+					return transaction;
 
 				} catch (SQLException e) {
 					e.printStackTrace();
 				}
-			}
-			return null;
+				return null;
+			});
+		} catch (ExecutionException e) {
+			rethrow(e, TransactionAlreadyReceivedException.class);
+			rethrow(e, WrongPreviousTransactionException.class);
+			e.getCause().printStackTrace();
+		}
+		return null;
     }
 
     public List<Transaction> audit(String keyHash) throws AccountNotFoundException, NullArgumentException {
 		checkNullKeyHash(keyHash);
     	
-    	Account account = null;
-        try {
-            account = accounts.queryForId(keyHash);
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+    	Account account = getAccount(keyHash);
         if (account == null) {
             throw new AccountNotFoundException("Account not found: " + keyHash);
         }
         return getAccountTransactions(keyHash);
     }
 
-    // TODO: Test this?
-    public void joinLedger(String keyHash, JsonNode json) throws WritebackMismatchedTransactionException {
+    /* Iterates over the account's chain in order from fromSequence, at most pageSize transactions when it is positive.
+       The store may read them as the cursor advances, the caller must close it */
+    public LedgerStore.Cursor<Transaction> auditPage(String keyHash, int fromSequence, int pageSize) throws AccountNotFoundException, NullArgumentException {
+		checkNullKeyHash(keyHash);
+		if (getAccount(keyHash) == null) {
+			throw new AccountNotFoundException("Account not found: " + keyHash);
+		}
+		try {
+			return store.iterateChain(keyHash, fromSequence, pageSize);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+    /* Whether the account's chain has the given transaction at the given position, so a client's verified prefix is still valid */
+    public boolean hasTransactionAt(String keyHash, int sequence, String transactionHash) {
+		ChainHead head = chainHeads.get(keyHash);
+		if (head == null || head.getSequence() < sequence) {
+			return false;
+		}
+		if (head.getSequence() == sequence) {
+			return head.getTransactionHash().equals(transactionHash);
+		}
+		try {
+			return store.hasTransactionAt(keyHash, sequence, transactionHash);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+    public void joinLedger(String keyHash, JsonNode json) throws WritebackMismatchedTransactionException, InvalidSignatureException {
     	List<Transaction> toAdd = new LinkedList<>();
 		ObjectMapper mapper = new ObjectMapper();
 		for (JsonNode transaction:json.get("transactions")){
@@ -313,15 +373,17 @@ public class HDSLib {
 			//Account owner = getAccount(transaction.get("owner").get("keyHash").asText());
 			boolean receiving = transaction.get("receiving").asBoolean();
 			int senderId = transaction.get("senderId").asInt();
-			byte[] senderSig = Base64.getDecoder().decode(transaction.get("senderSig").asText());
+			byte[] senderSig = transaction.get("senderSig").isNull() ? null : Base64.getDecoder().decode(transaction.get("senderSig").asText());
+			String senderTransactionId = transaction.path("senderTransactionId").isTextual() ? transaction.get("senderTransactionId").asText() : null;
 			boolean pending = transaction.get("pending").asBoolean();
 			String timestamp = transaction.get("timestamp").asText();
 			byte[] sig = Base64.getDecoder().decode(transaction.get("sig").asText());
 			//String transactionHash = transaction.get("transactionHash").asText();
 			String previousTransaction = transaction.get("previousTransaction").asText();
 
-			Transaction t = new Transaction(id, from, to, amount, timestamp, pending, receiving, previousTransaction, sig);
-			t.setSenderSig(senderSig);
+			Transaction t = new Transaction(id, from, to, amount, timestamp, pending, receiving, previousTransaction, sig, HDSCrypto.hashToString(sig));
+			t.setSenderSig(senderSig, senderSig == null ? null : HDSCrypto.hashToString(senderSig));
+			t.setSenderTransactionId(senderTransactionId);
 			t.setSenderId(senderId);
 			t.setLast(false);
 
@@ -329,40 +391,111 @@ public class HDSLib {
 		}
 
 		Collections.sort(toAdd);
-		List<Transaction> current = getAccountTransactions(keyHash);
-		Collections.sort(current);
-		System.out.println("[WRITEBACK RESULTS]");
-		for (int i = 0; i<toAdd.size(); i++) {
-			if (i >= current.size()) {
-				System.out.println("Adding " + toAdd.get(i).getId());
+		if (toAdd.isEmpty()) {
+			return;
+		}
+		// Every transaction in a chain is signed by its owner, check them all before touching the ledger
+		Account owner = getAccount(keyHash);
+		List<BatchVerifier.Check> checks = new ArrayList<>(toAdd.size());
+		for (Transaction t : toAdd) {
+			checks.add(signatureCheck(owner, t));
+		}
+		int invalid = BatchVerifier.getInstance().verify(checks);
+		if (invalid != -1) {
+			throw new InvalidSignatureException("Signature not valid: " + toAdd.get(invalid).getId());
+		}
+		try {
+			writer.submit(keyHash, () -> {
+				// Clients may write back only the part of the chain they audited, so entries are matched by sequence
+				Map<Integer, Transaction> current = new HashMap<>();
+				for (Transaction t : getAccountTransactions(keyHash, toAdd.get(0).getSequence())) {
+					current.put(t.getSequence(), t);
+				}
+				ChainHead head = chainHeads.get(keyHash);
+				int nextSequence = head == null ? 0 : head.getSequence() + 1;
+				String previousHash = head == null ? null : head.getTransactionHash();
+				System.out.println("[WRITEBACK RESULTS]");
+				List<Transaction> added = new LinkedList<>();
+				for (Transaction t : toAdd) {
+					Transaction mine = current.get(t.getSequence());
+					if (mine != null && mine.equals(t)) {
+						System.out.println("Already have " + t.getId());
+					} else if (mine == null && t.getSequence() == nextSequence
+							&& (previousHash == null || previousHash.equals(t.getPreviousTransaction()))) {
+						System.out.println("Adding " + t.getId());
+						added.add(t);
+						nextSequence++;
+						previousHash = t.getTransactionHash();
+					} else {
+						System.out.println("Mismatch in " + t.getId());
+						String expected = mine != null ? mine.getId() : nextSequence + "-" + keyHash;
+						throw new WritebackMismatchedTransactionException(expected, t.getId());
+					}
+				}
+				if (added.isEmpty()) {
+					return null;
+				}
+
+				// Added transactions continue the chain, so the newest one becomes the head
+				Transaction newest = added.get(added.size() - 1);
 				try {
-					transactions.create(toAdd.get(i));
+					store.appendChain(added, head);
+					chainHeads.put(keyHash, new ChainHead(newest));
 				} catch (SQLException e) {
 					e.printStackTrace();
 				}
-			} else if(current.get(i).equals(toAdd.get(i))){
-				System.out.println("Already have " + toAdd.get(i).getId());
-			} else {
-				System.out.println("Mismatch in " + toAdd.get(i).getId());
-				throw new WritebackMismatchedTransactionException(current.get(i).getId(), toAdd.get(i).getId());
+				return null;
+			});
+		} catch (ExecutionException e) {
+			rethrow(e, WritebackMismatchedTransactionException.class);
+			e.getCause().printStackTrace();
+		}
+	}
+
+    /* The check for the signature the owner made when sending or receiving t, as verified by sendAmount and receiveAmount */
+    private static BatchVerifier.Check signatureCheck(Account owner, Transaction t) {
+		if (owner == null || t.getFrom() == null || t.getTo() == null) {
+			return new BatchVerifier.Check(null, t.getSig());
+		}
+		if (t.isReceiving()) {
+			if (!owner.getKeyHash().equals(t.getTo().getKeyHash()) || t.getSenderTransactionId() == null) {
+				return new BatchVerifier.Check(null, t.getSig());
 			}
+			return new BatchVerifier.Check(keyOf(owner), t.getSig(), t.getSenderTransactionId().getBytes(), t.getSenderSig(),
+					t.getPreviousTransaction().getBytes(), t.getTimestamp().getBytes());
+		}
+		if (!owner.getKeyHash().equals(t.getFrom().getKeyHash())) {
+			return new BatchVerifier.Check(null, t.getSig());
 		}
+		return new BatchVerifier.Check(keyOf(owner), t.getSig(), t.getFrom().getKeyHash().getBytes(), t.getTo().getKeyHash().getBytes(),
+				BigInteger.valueOf(t.getAmount()).toByteArray(), t.getPreviousTransaction().getBytes(), t.getTimestamp().getBytes());
 	}
 
     public Account getAccount(String keyHash) {
-        Account account = null;
+        Account account = accountCache.get(keyHash);
+        if (account != null) {
+            return account;
+        }
         try {
-            account = accounts.queryForId(keyHash);
-        } catch (SQLException e) {
+            if (writer.isWriterThread() && !writer.owns(keyHash)) {
+                // Another shard's account, only read
+                return store.findAccount(keyHash);
+            }
+            // Cached by the account's writer, so a balance update can't be committed between the read and the insert
+            return writer.submit(keyHash, () -> {
+                Account loaded = store.findAccount(keyHash);
+                return loaded == null ? null : accountCache.put(loaded);
+            });
+        } catch (SQLException | ExecutionException e) {
             e.printStackTrace();
         }
-        return account;
+        return null;
     }
 
     public Transaction getTransaction(String id) {
         Transaction transaction = null;
         try {
-            transaction = transactions.queryForId(id);
+            transaction = store.findTransaction(id);
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -371,27 +504,42 @@ public class HDSLib {
 
 	public Transaction getTransactionBySig(byte[] sig) {
 		try {
-			List<Transaction> repeats = transactions.queryBuilder().where().eq("sig", sig).query();
-			if (repeats.size() == 0) {
-				return null;
-			} else {
-				return repeats.get(0);
-			}
+			return store.findTransactionByHash(HDSCrypto.hashToString(sig));
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
 		return null;
 	}
 
+	private boolean isReceived(Transaction sent) throws SQLException {
+		return store.isReceived(sent.getTransactionHash());
+	}
+
+	/* Decoded once per key, see HDSCrypto.decodePublicKey */
+	private static PublicKey keyOf(Account account) {
+		return HDSCrypto.decodePublicKey(account.getKeyHash(), account.getEncodedKey());
+	}
+
     public List<Transaction> getAccountTransactions(String keyHash){
+		return getAccountTransactions(keyHash, 0);
+	}
+
+    public List<Transaction> getAccountTransactions(String keyHash, int fromSequence){
 		try {
-			return transactions.queryBuilder().where().eq("owner_id", keyHash).query();
+			return store.findChain(keyHash, fromSequence);
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
 		return null;
 	}
 
+	/* Throws the cause of a failed ledger write if it is one of type, the checked exceptions of a request are passed on one by one */
+	private static <E extends Exception> void rethrow(ExecutionException e, Class<E> type) throws E {
+		if (type.isInstance(e.getCause())) {
+			throw type.cast(e.getCause());
+		}
+	}
+
 	private void checkNullKeyHash(String key) throws NullArgumentException {
 		if (key == null || key.trim().equals("")) {
 			throw new NullArgumentException("Null or empty key hash");
@@ -416,8 +564,19 @@ public class HDSLib {
 		}
 	}
 
-	private String calculateNextId(Transaction transaction) {
-    	int c = Integer.parseInt(transaction.getId().substring(0, transaction.getId().indexOf("-"))) + 1;
-		return c + transaction.getId().substring(transaction.getId().indexOf("-"));
-    }
+	public LedgerStore getStore() {
+		return store;
+	}
+
+	public AccountCache getAccountCache() {
+		return accountCache;
+	}
+
+	public LedgerWriter getWriter() {
+		return writer;
+	}
+
+	public ChainHead getChainHead(String keyHash) {
+		return chainHeads.get(keyHash);
+	}
 }
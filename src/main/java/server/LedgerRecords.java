@@ -0,0 +1,133 @@
+package server;
+
+import server.domain.Account;
+import server.domain.Transaction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/*
+ * How LogLedgerStore and WriteAheadLog put ledger writes in a file: records of [length][crc32][payload],
+ * the payload written through DataOutputStream. A record whose length or checksum doesn't hold ends the scan,
+ * it was being written when the server stopped.
+ */
+final class LedgerRecords {
+    static final int HEADER = 8;
+
+    interface Encoder {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    interface Handler {
+        void accept(int offset, byte[] payload) throws IOException;
+    }
+
+    private LedgerRecords() {
+    }
+
+    static ByteBuffer frame(Encoder encoder) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        encoder.write(out);
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER, record.limit() - HEADER);
+        record.putInt(0, record.limit() - HEADER);
+        record.putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    /* Hands the buffer's records to handler, returns where the last complete one ends */
+    static int scan(ByteBuffer buffer, Handler handler) throws IOException {
+        CRC32 crc = new CRC32();
+        int offset = 0;
+        while (offset <= buffer.limit() - HEADER) {
+            int length = buffer.getInt(offset);
+            int checksum = buffer.getInt(offset + 4);
+            if (length <= 0 || length > buffer.limit() - offset - HEADER) {
+                return offset;
+            }
+            byte[] payload = new byte[length];
+            buffer.position(offset + HEADER);
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                return offset;
+            }
+            handler.accept(offset, payload);
+            offset += HEADER + length;
+        }
+        return offset;
+    }
+
+    static void writeTransaction(DataOutputStream out, Transaction t) throws IOException {
+        out.writeUTF(t.getId());
+        out.writeUTF(t.getFrom().getKeyHash());
+        out.writeUTF(t.getTo().getKeyHash());
+        out.writeInt(t.getAmount());
+        out.writeUTF(t.getTimestamp());
+        out.writeBoolean(t.isPending());
+        out.writeBoolean(t.isReceiving());
+        out.writeUTF(t.getPreviousTransaction());
+        writeBytes(out, t.getSig());
+        writeBytes(out, t.getSenderSig());
+        writeOptional(out, t.getSenderTransactionId());
+        out.writeInt(t.getSenderId());
+    }
+
+    static Transaction readTransaction(DataInputStream in) throws IOException {
+        String id = in.readUTF();
+        Account from = new Account(in.readUTF(), null, 0);
+        Account to = new Account(in.readUTF(), null, 0);
+        int amount = in.readInt();
+        String timestamp = in.readUTF();
+        boolean pending = in.readBoolean();
+        boolean receiving = in.readBoolean();
+        String previousTransaction = in.readUTF();
+        byte[] sig = readBytes(in);
+        Transaction t = new Transaction(id, from, to, amount, timestamp, pending, receiving, previousTransaction, sig, HDSCrypto.hashToString(sig));
+        byte[] senderSig = readBytes(in);
+        t.setSenderSig(senderSig, senderSig == null ? null : HDSCrypto.hashToString(senderSig));
+        t.setSenderTransactionId(readOptional(in));
+        t.setSenderId(in.readInt());
+        return t;
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /* Null strings as an absent flag, writeUTF can't take them */
+    static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import server.domain.Account;
+import server.domain.ChainHead;
+import server.domain.Transaction;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+ * Where HDSLib keeps accounts and transactions. HDSLib does the validation and the ordering: reads may
+ * run at any time, and each write is called from the LedgerWriter thread of the account it changes, so
+ * writes to one account never overlap. A write either fully happens or not at all, and is as durable as
+ * the store gets by the time it returns.
+ * Objects returned are the caller's to change, the store never hands out what it holds.
+ *
+ * h2 keeps the ledger in an H2 database through ORMLite, memory keeps it in the heap only, for tests
+ * and benchmarks, and log appends every write to memory-mapped segment files that are replayed into
+ * memory on start.
+ */
+public interface LedgerStore {
+    String[] TYPES = {"h2", "memory", "log"};
+
+    /* name tells the ledgers of different servers on the same machine apart, like the database name */
+    static LedgerStore open(String type, String name) throws SQLException {
+        switch (type) {
+            case "h2":
+                return new H2LedgerStore(name);
+            case "memory":
+                return new MemoryLedgerStore();
+            case "log":
+                return new LogLedgerStore(name);
+            default:
+                throw new IllegalArgumentException("Unknown ledger store " + type + ", expected one of h2, memory or log");
+        }
+    }
+
+    Account findAccount(String keyHash) throws SQLException;
+
+    Transaction findTransaction(String id) throws SQLException;
+
+    Transaction findTransactionByHash(String transactionHash) throws SQLException;
+
+    /* Whether a receive completing the send with this signature hash is stored */
+    boolean isReceived(String senderSigHash) throws SQLException;
+
+    /* Sends to the account that haven't been received yet */
+    List<Transaction> findPendingIncoming(String keyHash) throws SQLException;
+
+    /* The account's chain from fromSequence on, in chain order */
+    List<Transaction> findChain(String keyHash, int fromSequence) throws SQLException;
+
+    /* Like findChain, at most pageSize transactions when it is positive. The caller must close the cursor */
+    Cursor<Transaction> iterateChain(String keyHash, int fromSequence, int pageSize) throws SQLException;
+
+    boolean hasTransactionAt(String keyHash, int sequence, String transactionHash) throws SQLException;
+
+    /* The newest transaction of every account that has one */
+    List<Transaction> findChainHeads() throws SQLException;
+
+    void createAccount(Account account) throws SQLException;
+
+    /* Adds a send after previous, null for the first transaction, and stores the source's new balance */
+    void appendSend(Transaction send, ChainHead previous, Account source) throws SQLException;
+
+    /* Adds a receive after previous, marks sent as received, and stores the destination's new balance */
+    void appendReceive(Transaction receive, Transaction sent, ChainHead previous, Account dest) throws SQLException;
+
+    /* Adds transactions written back by a client after previous, the last one becomes the chain head */
+    void appendChain(List<Transaction> added, ChainHead previous) throws SQLException;
+
+    void close();
+
+    interface Cursor<T> extends Iterator<T>, AutoCloseable {
+        @Override
+        void close();
+    }
+}
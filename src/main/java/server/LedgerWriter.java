@@ -0,0 +1,203 @@
+package server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Applies the ledger's writes one at a time per shard of accounts, each shard on its own thread fed by a
+ * bounded queue. Every write changes a single account, its balance and its chain, so running all the writes
+ * of an account on the same thread orders them without any lock. The shards share the store, so their
+ * writes still get group committed together.
+ * Counts how long commands wait in the queues and how long they take to apply, to size the shards.
+ */
+public class LedgerWriter {
+    public interface Command<T> {
+        T apply() throws Exception;
+    }
+
+    private final Shard[] shards;
+    private final ThreadLocal<Shard> current = new ThreadLocal<>();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder applyNanos = new LongAdder();
+    // Held to queue a command, and exclusively to stop, so nothing is queued behind a shard's stop
+    private final ReadWriteLock queueing = new ReentrantReadWriteLock();
+    private boolean stopped;
+
+    public LedgerWriter(int shardCount, int queueSize) {
+        shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i, Math.max(1, queueSize));
+        }
+    }
+
+    /*
+     * Runs command on the shard of keyHash and returns its result once applied. What the command throws
+     * comes back as the cause of an ExecutionException, unchecked exceptions as they are.
+     */
+    public <T> T submit(String keyHash, Command<T> command) throws ExecutionException {
+        Shard shard = shardOf(keyHash);
+        Shard running = current.get();
+        if (running == shard) {
+            try {
+                return command.apply();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ExecutionException(e);
+            }
+        }
+        if (running != null) {
+            // Two shards waiting on each other would never finish
+            throw new IllegalStateException("A command may only change the accounts of its own shard");
+        }
+        Task<T> task = new Task<>(command);
+        try {
+            queueing.readLock().lock();
+            try {
+                if (stopped) {
+                    throw new IllegalStateException("The ledger writer was shut down");
+                }
+                shard.queue.put(task);
+            } finally {
+                queueing.readLock().unlock();
+            }
+            return task.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the ledger writer", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /* Whether the calling thread is the writer of some shard, and so may only touch that shard's accounts */
+    public boolean isWriterThread() {
+        return current.get() != null;
+    }
+
+    public boolean owns(String keyHash) {
+        return current.get() == shardOf(keyHash);
+    }
+
+    /* Applies everything already queued, then stops the shard threads. Later submits are refused */
+    public void shutdown() {
+        queueing.writeLock().lock();
+        try {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+        } finally {
+            queueing.writeLock().unlock();
+        }
+        boolean interrupted = false;
+        for (Shard shard : shards) {
+            // A full queue has room again once its thread takes the next command
+            while (true) {
+                try {
+                    shard.queue.put(shard.stop);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Shard shardOf(String keyHash) {
+        int h = keyHash.hashCode();
+        h ^= (h >>> 16);
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+
+    /* Commands waiting in the queues of all shards */
+    public int getQueued() {
+        int queued = 0;
+        for (Shard shard : shards) {
+            queued += shard.queue.size();
+        }
+        return queued;
+    }
+
+    @Override
+    public String toString() {
+        long count = applied.sum();
+        return "--- Ledger Writer ---" +
+                "\nShards: " + shards.length +
+                "\nQueued: " + getQueued() +
+                "\nApplied: " + count +
+                "\nAverage wait: " + (count == 0 ? 0 : waitNanos.sum() / count / 1000) + " us" +
+                "\nAverage apply: " + (count == 0 ? 0 : applyNanos.sum() / count / 1000) + " us" +
+                "\n-------";
+    }
+
+    private class Shard {
+        private final BlockingQueue<Task<?>> queue;
+        private final Task<Void> stop = new Task<>(null);
+        private final Thread thread;
+
+        private Shard(int index, int queueSize) {
+            queue = new ArrayBlockingQueue<>(queueSize);
+            thread = new Thread(this::run, "hds-ledger-writer-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void run() {
+            current.set(this);
+            while (true) {
+                Task<?> task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (task == stop) {
+                    return;
+                }
+                long started = System.nanoTime();
+                waitNanos.add(started - task.queuedAt);
+                task.run();
+                applyNanos.add(System.nanoTime() - started);
+                applied.increment();
+            }
+        }
+    }
+
+    private static class Task<T> {
+        private final Command<T> command;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final long queuedAt = System.nanoTime();
+
+        private Task(Command<T> command) {
+            this.command = command;
+        }
+
+        private void run() {
+            try {
+                result.complete(command.apply());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+}
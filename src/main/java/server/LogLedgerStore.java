@@ -0,0 +1,639 @@
+package server;
+
+import server.domain.Account;
+import server.domain.ChainHead;
+import server.domain.Transaction;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import static java.nio.file.StandardOpenOption.*;
+import static server.LedgerRecords.*;
+
+/*
+ * The ledger in memory, as MemoryLedgerStore keeps it, with every write appended to a log under
+ * db/<name><port>-log before it is applied, so the log alone rebuilds the ledger when the server starts again.
+ * Records are only ever appended, the pending and last flags that change later are not stored with the
+ * transactions: they follow from the receives and the chain order, and MemoryLedgerStore keeps them as an
+ * index next to the chains that is rebuilt while the log is scanned.
+ *
+ * The log is split in segment files of hds.log.segmentBytes, each one preallocated and memory-mapped, so an
+ * append is a copy into the page cache. Appends from all request threads go through one writer thread,
+ * which forces whatever queued up while the previous force was running to disk at once, so concurrent
+ * operations share an fsync. Records are [length][crc32][payload] followed by zeroes up to the end of the
+ * segment. A record cut short by a crash fails its check on start and is zeroed, along with anything after it.
+ * Mappings can't be released explicitly in Java 8, those of full segments go when they are collected.
+ *
+ * Every hds.log.checkpointSeconds, and when the store is closed, a checkpoint signed with the server's key
+ * records the balances, chain heads and pending sends as of the start of a new segment, and the segments
+ * before it move to the archive directory. A restart loads the latest checkpoint it can verify and replays
+ * only the segments after it, then reads the archive in the background to serve the older history.
+ */
+public class LogLedgerStore extends MemoryLedgerStore {
+    private static final byte ACCOUNT = 1;
+    private static final byte SEND = 2;
+    private static final byte RECEIVE = 3;
+    private static final byte CHAIN = 4;
+    private static final String SEGMENT = ".segment";
+    private static final String CHECKPOINT = ".checkpoint";
+    private static final int CHECKPOINT_FORMAT = 1;
+
+    private final Path directory;
+    private final Path archive;
+    private final KeyPair keys;
+    private final int segmentBytes = Integer.getInteger("hds.log.segmentBytes", 64 << 20);
+    private final boolean sync = Boolean.parseBoolean(System.getProperty("hds.log.sync", "true"));
+    private final long checkpointSeconds = Long.getLong("hds.log.checkpointSeconds", 300);
+    private final BlockingQueue<Append> queue = new LinkedBlockingQueue<>();
+    private final Append stop = new Append(null);
+    private final Thread writer;
+    private ScheduledExecutorService checkpoints;
+
+    // Appends hold it shared and a checkpoint exclusively, so every record before the checkpoint has been applied
+    private final ReadWriteLock appending = new ReentrantReadWriteLock();
+    private volatile boolean appendedSinceCheckpoint;
+    // Hashes of every transaction ever appended, lookups that miss while the history loads only wait when they may find it
+    private BloomFilter transactionHashes = new BloomFilter(1 << 20, 0.01);
+    private BloomFilter senderSigHashes = new BloomFilter(1 << 20, 0.01);
+
+    // The segment appended to, only used by the writer thread once the store is open
+    private int segment;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+
+    public LogLedgerStore(String name) throws SQLException {
+        this(name, Application.getServerKeys());
+    }
+
+    /* Without keys no checkpoints are written or trusted, and every start replays the whole log */
+    public LogLedgerStore(String name, KeyPair keys) throws SQLException {
+        this.directory = Paths.get("db", name + Application.port + "-log");
+        this.archive = directory.resolve("archive");
+        this.keys = keys;
+        int checkpoint;
+        try {
+            Files.createDirectories(archive);
+            checkpoint = loadCheckpoint();
+            replay(checkpoint);
+        } catch (IOException e) {
+            throw new SQLException("Couldn't open " + directory, e);
+        }
+        writer = new Thread(this::run, "hds-ledger-log");
+        writer.setDaemon(true);
+        writer.start();
+        if (checkpoint >= 0) {
+            Thread history = new Thread(() -> loadHistory(checkpoint), "hds-ledger-history");
+            history.setDaemon(true);
+            history.start();
+        }
+        if (keys != null && checkpointSeconds > 0) {
+            checkpoints = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "hds-ledger-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkpoints.scheduleWithFixedDelay(() -> {
+                if (appendedSinceCheckpoint) {
+                    try {
+                        checkpoint();
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, checkpointSeconds, checkpointSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void createAccount(Account account) throws SQLException {
+        appending.readLock().lock();
+        try {
+            validateNewAccount(account);
+            append(ACCOUNT, out -> {
+                out.writeUTF(account.getKeyHash());
+                writeBytes(out, account.getEncodedKey());
+                out.writeInt(account.getAmount());
+            });
+            super.createAccount(account);
+        } finally {
+            appending.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void appendSend(Transaction send, ChainHead previous, Account source) throws SQLException {
+        List<Transaction> added = new ArrayList<>();
+        added.add(send);
+        appending.readLock().lock();
+        try {
+            validateAppend(added, null, source);
+            append(SEND, out -> {
+                writeTransaction(out, send);
+                out.writeUTF(source.getKeyHash());
+                out.writeInt(source.getAmount());
+            });
+            super.appendSend(send, previous, source);
+            remember(added);
+        } finally {
+            appending.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void appendReceive(Transaction receive, Transaction sent, ChainHead previous, Account dest) throws SQLException {
+        List<Transaction> added = new ArrayList<>();
+        added.add(receive);
+        appending.readLock().lock();
+        try {
+            validateAppend(added, sent, dest);
+            append(RECEIVE, out -> {
+                writeTransaction(out, receive);
+                out.writeUTF(sent.getId());
+                out.writeUTF(dest.getKeyHash());
+                out.writeInt(dest.getAmount());
+            });
+            super.appendReceive(receive, sent, previous, dest);
+            remember(added);
+        } finally {
+            appending.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void appendChain(List<Transaction> added, ChainHead previous) throws SQLException {
+        appending.readLock().lock();
+        try {
+            validateAppend(added, null, null);
+            append(CHAIN, out -> {
+                out.writeInt(added.size());
+                for (Transaction t : added) {
+                    writeTransaction(out, t);
+                }
+            });
+            super.appendChain(added, previous);
+            remember(added);
+        } finally {
+            appending.readLock().unlock();
+        }
+    }
+
+    /*
+     * Starts a new segment and writes the state as of its start, signed, next to it.
+     * The segments before it are moved to the archive, a restart doesn't read them before serving.
+     */
+    public void checkpoint() throws SQLException {
+        if (keys == null) {
+            throw new SQLException("Checkpoints are signed with the server's key, which isn't loaded");
+        }
+        int number;
+        byte[] state;
+        appending.writeLock().lock();
+        try {
+            number = roll();
+            state = encodeCheckpoint(number, snapshot());
+            appendedSinceCheckpoint = false;
+        } catch (IOException e) {
+            throw new SQLException("Couldn't take a checkpoint of " + directory, e);
+        } finally {
+            appending.writeLock().unlock();
+        }
+
+        Path file = directory.resolve(String.format("%08d", number) + CHECKPOINT);
+        Path partial = directory.resolve(file.getFileName() + ".partial");
+        try {
+            Signature signature = HDSCrypto.createSignature(keys.getPrivate());
+            signature.update(state);
+            byte[] sig = signature.sign();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partial)))) {
+                out.writeInt(state.length);
+                out.write(state);
+                writeBytes(out, sig);
+            }
+            try (FileChannel written = FileChannel.open(partial, WRITE)) {
+                written.force(true);
+            }
+            Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            for (Path old : list(directory, SEGMENT)) {
+                if (numberOf(old, SEGMENT) < number) {
+                    Files.move(old, archive.resolve(old.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            for (Path old : list(directory, CHECKPOINT)) {
+                if (numberOf(old, CHECKPOINT) < number) {
+                    Files.delete(old);
+                }
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            throw new SQLException("Couldn't write checkpoint " + file, e);
+        }
+    }
+
+    /* Appends everything already queued, checkpoints if anything changed since the last one, then closes the log */
+    @Override
+    public void close() {
+        if (checkpoints != null) {
+            checkpoints.shutdown();
+            try {
+                checkpoints.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (keys != null && appendedSinceCheckpoint) {
+            try {
+                checkpoint();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        queue.add(stop);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            mapped.force();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected boolean historyMightContain(String transactionHash) {
+        return transactionHashes.mightContain(transactionHash);
+    }
+
+    @Override
+    protected boolean historyMightHaveReceived(String senderSigHash) {
+        return senderSigHashes.mightContain(senderSigHash);
+    }
+
+    private void remember(List<Transaction> added) {
+        for (Transaction t : added) {
+            transactionHashes.put(t.getTransactionHash());
+            senderSigHashes.put(t.getSenderSigHash());
+        }
+    }
+
+    /* Restores the newest checkpoint whose signature holds, returns the segment it was taken at or -1 without one */
+    private int loadCheckpoint() throws IOException {
+        List<Path> files = list(directory, CHECKPOINT);
+        if (files.isEmpty()) {
+            return -1;
+        }
+        if (keys == null) {
+            System.out.println("Ignoring the checkpoints in " + directory + ", the server's key isn't loaded to verify them");
+            return -1;
+        }
+        Collections.reverse(files);
+        for (Path file : files) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                byte[] state = new byte[in.readInt()];
+                in.readFully(state);
+                byte[] sig = readBytes(in);
+                Signature signature = HDSCrypto.verifySignature(keys.getPublic());
+                signature.update(state);
+                if (sig == null || !signature.verify(sig)) {
+                    throw new IOException("its signature doesn't match");
+                }
+                int number = decodeCheckpoint(state);
+                System.out.println("Restored " + file);
+                return number;
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                System.out.println("Ignoring checkpoint " + file + ": " + e.getMessage());
+            }
+        }
+        return -1;
+    }
+
+    private byte[] encodeCheckpoint(int number, Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(CHECKPOINT_FORMAT);
+        out.writeInt(number);
+        out.writeInt(snapshot.accounts.size());
+        for (Account account : snapshot.accounts) {
+            out.writeUTF(account.getKeyHash());
+            writeBytes(out, account.getEncodedKey());
+            out.writeInt(account.getAmount());
+        }
+        out.writeInt(snapshot.heads.size());
+        for (Transaction head : snapshot.heads) {
+            writeTransaction(out, head);
+        }
+        out.writeInt(snapshot.pending.size());
+        for (Transaction pending : snapshot.pending) {
+            writeTransaction(out, pending);
+        }
+        transactionHashes.writeTo(out);
+        senderSigHashes.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /* Reads the whole checkpoint before restoring any of it, so one that turns out damaged leaves the store empty */
+    private int decodeCheckpoint(byte[] state) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+        if (in.readInt() != CHECKPOINT_FORMAT) {
+            throw new IOException("unknown checkpoint format");
+        }
+        int number = in.readInt();
+        List<Account> accounts = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            accounts.add(new Account(in.readUTF(), readBytes(in), in.readInt()));
+        }
+        List<Transaction> heads = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            heads.add(readTransaction(in));
+        }
+        List<Transaction> pending = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            pending.add(readTransaction(in));
+        }
+        BloomFilter hashes = BloomFilter.readFrom(in);
+        BloomFilter senderSigs = BloomFilter.readFrom(in);
+        restoreCheckpoint(new Snapshot(accounts, heads, pending));
+        transactionHashes = hashes;
+        senderSigHashes = senderSigs;
+        return number;
+    }
+
+    /* Reads the transactions from before the checkpoint back out of the archive, for audits and old lookups */
+    private void loadHistory(int checkpoint) {
+        List<Transaction> archived = new ArrayList<>();
+        Set<String> receivedIds = new HashSet<>();
+        try {
+            for (Path file : list(archive, SEGMENT)) {
+                if (numberOf(file, SEGMENT) >= checkpoint) {
+                    continue;
+                }
+                try (FileChannel old = FileChannel.open(file, READ)) {
+                    scan(old.map(FileChannel.MapMode.READ_ONLY, 0, old.size()), (offset, payload) -> collect(payload, archived, receivedIds));
+                }
+            }
+            restoreHistory(archived, receivedIds);
+            System.out.println("Loaded " + archived.size() + " transactions from before the checkpoint");
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            finishHistory();
+        }
+    }
+
+    /*
+     * Replays the segments from the checkpoint on, or all of them without one, and leaves the last one
+     * open where its records end. Segments the checkpoint covers that weren't archived yet are archived now.
+     */
+    private void replay(int checkpoint) throws IOException {
+        for (Path file : list(directory, SEGMENT)) {
+            if (numberOf(file, SEGMENT) < checkpoint) {
+                Files.move(file, archive.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        List<Path> segments = new ArrayList<>();
+        for (Path file : list(archive, SEGMENT)) {
+            if (numberOf(file, SEGMENT) >= checkpoint) {
+                segments.add(file);
+            }
+        }
+        segments.addAll(list(directory, SEGMENT));
+        if (segments.isEmpty()) {
+            openSegment(Math.max(checkpoint, 0), segmentBytes);
+            return;
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            Path file = segments.get(i);
+            segment = numberOf(file, SEGMENT);
+            channel = FileChannel.open(file, READ, WRITE);
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            int end = scan(mapped, (offset, payload) -> {
+                try {
+                    apply(payload);
+                } catch (SQLException e) {
+                    // Logged but refused when it was first applied, so it never was part of the ledger
+                    System.out.println("Skipping record at " + offset + " of " + file + ": " + e.getMessage());
+                }
+            });
+            // Full segments end in zeroes, whatever else is found after the records was being written during a crash
+            boolean last = i == segments.size() - 1;
+            if (last || (end <= mapped.limit() - HEADER && mapped.getLong(end) != 0)) {
+                if (zeroFrom(end)) {
+                    System.out.println("Dropped incomplete records at " + end + " of " + file);
+                    for (Path later : segments.subList(i + 1, segments.size())) {
+                        System.out.println("Dropped " + later + ", it follows an incomplete record");
+                        Files.delete(later);
+                    }
+                }
+                mapped.position(end);
+                // Only live segments are appended to
+                if (!file.getParent().equals(directory)) {
+                    channel.close();
+                    openSegment(segment + 1, segmentBytes);
+                }
+                return;
+            }
+            channel.close();
+        }
+    }
+
+    /* The files in dir with the given suffix, in the order they were written */
+    private static List<Path> list(Path dir, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(suffix)).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static int numberOf(Path file, String suffix) {
+        String fileName = file.getFileName().toString();
+        return Integer.parseInt(fileName.substring(0, fileName.length() - suffix.length()));
+    }
+
+    /* Clears what follows the records of the open segment, returns whether anything was there */
+    private boolean zeroFrom(int end) {
+        boolean dirty = false;
+        for (int i = end; i < mapped.limit(); i++) {
+            if (mapped.get(i) != 0) {
+                mapped.put(i, (byte) 0);
+                dirty = true;
+            }
+        }
+        if (dirty) {
+            mapped.force();
+        }
+        return dirty;
+    }
+
+    private void openSegment(int number, int size) throws IOException {
+        segment = number;
+        channel = FileChannel.open(directory.resolve(String.format("%08d", number) + SEGMENT), CREATE_NEW, READ, WRITE);
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /* Records never span segments, one bigger than a segment gets a segment of its own size */
+    private void write(ByteBuffer record) throws IOException {
+        if (mapped.remaining() < record.remaining()) {
+            if (sync) {
+                mapped.force();
+            }
+            channel.close();
+            openSegment(segment + 1, Math.max(segmentBytes, record.remaining()));
+        }
+        mapped.put(record);
+    }
+
+    private void apply(byte[] payload) throws IOException, SQLException {
+        appendedSinceCheckpoint = true;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        switch (type) {
+            case ACCOUNT:
+                super.createAccount(new Account(in.readUTF(), readBytes(in), in.readInt()));
+                break;
+            case SEND: {
+                Transaction send = readTransaction(in);
+                super.appendSend(send, null, new Account(in.readUTF(), null, in.readInt()));
+                remember(Collections.singletonList(send));
+                break;
+            }
+            case RECEIVE: {
+                Transaction receive = readTransaction(in);
+                Transaction sent = new Transaction();
+                sent.setId(in.readUTF());
+                super.appendReceive(receive, sent, null, new Account(in.readUTF(), null, in.readInt()));
+                remember(Collections.singletonList(receive));
+                break;
+            }
+            case CHAIN: {
+                int count = in.readInt();
+                List<Transaction> added = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    added.add(readTransaction(in));
+                }
+                super.appendChain(added, null);
+                remember(added);
+                break;
+            }
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    /* Gathers the transactions of an archived record, and the send a receive completed */
+    private static void collect(byte[] payload, List<Transaction> archived, Set<String> receivedIds) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        switch (type) {
+            case ACCOUNT:
+                break;
+            case SEND:
+                archived.add(readTransaction(in));
+                break;
+            case RECEIVE:
+                archived.add(readTransaction(in));
+                receivedIds.add(in.readUTF());
+                break;
+            case CHAIN:
+                for (int i = in.readInt(); i > 0; i--) {
+                    archived.add(readTransaction(in));
+                }
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    /* Returns once the record is in the log, and on disk unless hds.log.sync is false */
+    private void append(byte type, Encoder encoder) throws SQLException {
+        ByteBuffer record;
+        try {
+            record = frame(out -> {
+                out.writeByte(type);
+                encoder.write(out);
+            });
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        await(new Append(record));
+    }
+
+    /* Has the writer start a new segment unless the current one is still empty, returns the segment written to from now on */
+    private int roll() throws SQLException {
+        return await(new Append(ByteBuffer.allocate(0)));
+    }
+
+    private int await(Append append) throws SQLException {
+        queue.add(append);
+        try {
+            return append.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while appending to " + directory, e);
+        } catch (ExecutionException e) {
+            throw new SQLException("Couldn't append to " + directory, e.getCause());
+        }
+    }
+
+    private void run() {
+        List<Append> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch);
+            stopping = batch.remove(stop);
+            try {
+                for (Append append : batch) {
+                    if (append.record.hasRemaining()) {
+                        write(append.record);
+                    } else if (mapped.position() > 0) {
+                        // A checkpoint follows, the segments before it have to be on disk whatever hds.log.sync says
+                        mapped.force();
+                        channel.close();
+                        openSegment(segment + 1, segmentBytes);
+                    }
+                }
+                if (sync && !batch.isEmpty()) {
+                    mapped.force();
+                }
+                for (Append append : batch) {
+                    append.done.complete(segment);
+                }
+            } catch (IOException e) {
+                for (Append append : batch) {
+                    append.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private static class Append {
+        private final ByteBuffer record;
+        private final CompletableFuture<Integer> done = new CompletableFuture<>();
+
+        private Append(ByteBuffer record) {
+            this.record = record;
+        }
+    }
+}
@@ -41,6 +41,9 @@ public class MaliciousApplication {
         }
         port = Integer.valueOf(args[0]);
         generateKey();
+        // Open the ledger, and replay its log, before the first request rather than on it
+        HDSLib.getInstance();
+        Runtime.getRuntime().addShutdownHook(new Thread(HDSLib::shutdown, "hds-shutdown"));
         try {
             address = InetAddress.getLocalHost().getHostAddress();
         } catch (UnknownHostException e) {
@@ -0,0 +1,479 @@
+package server;
+
+import server.domain.Account;
+import server.domain.ChainHead;
+import server.domain.Transaction;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * The whole ledger in the heap, gone when the server stops. Used by the unit tests and benchmarks,
+ * and as the state LogLedgerStore replays its file into.
+ * Every chain is a list in sequence order, so the head is always its last entry and the last flags
+ * don't have to be kept up to date. Reads copy what they return.
+ *
+ * Restored from a checkpoint, the chains hold only their heads until restoreHistory puts the older
+ * transactions back. Until then lookups that may need them wait, the others are answered right away.
+ */
+public class MemoryLedgerStore implements LedgerStore {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Account> accounts = new HashMap<>();
+    private final Map<String, Transaction> transactions = new HashMap<>();
+    private final Map<String, Transaction> byHash = new HashMap<>();
+    private final Set<String> receivedSenderSigs = new HashSet<>();
+    private final Map<String, List<Transaction>> chains = new HashMap<>();
+    private final Map<String, Set<String>> pendingIncoming = new HashMap<>();
+    // Sequence of the first transaction in memory of chains restored from a checkpoint, absent when it is 0
+    private final Map<String, Integer> bases = new HashMap<>();
+    private volatile CountDownLatch history;
+
+    @Override
+    public Account findAccount(String keyHash) {
+        lock.readLock().lock();
+        try {
+            Account account = accounts.get(keyHash);
+            return account == null ? null : new Account(account.getKeyHash(), account.getEncodedKey(), account.getAmount());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Transaction findTransaction(String id) {
+        Transaction found = lookup(transactions, id);
+        if (found == null && isLoadingHistory()) {
+            awaitHistory();
+            found = lookup(transactions, id);
+        }
+        return found;
+    }
+
+    @Override
+    public Transaction findTransactionByHash(String transactionHash) {
+        Transaction found = lookup(byHash, transactionHash);
+        if (found == null && isLoadingHistory() && historyMightContain(transactionHash)) {
+            awaitHistory();
+            found = lookup(byHash, transactionHash);
+        }
+        return found;
+    }
+
+    private Transaction lookup(Map<String, Transaction> index, String key) {
+        lock.readLock().lock();
+        try {
+            return copy(index.get(key));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isReceived(String senderSigHash) {
+        if (!isReceivedInMemory(senderSigHash) && isLoadingHistory() && historyMightHaveReceived(senderSigHash)) {
+            awaitHistory();
+        }
+        return isReceivedInMemory(senderSigHash);
+    }
+
+    private boolean isReceivedInMemory(String senderSigHash) {
+        lock.readLock().lock();
+        try {
+            return receivedSenderSigs.contains(senderSigHash);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Transaction> findPendingIncoming(String keyHash) {
+        lock.readLock().lock();
+        try {
+            List<Transaction> pending = new ArrayList<>();
+            for (String id : pendingIncoming.getOrDefault(keyHash, Collections.emptySet())) {
+                pending.add(copy(transactions.get(id)));
+            }
+            return pending;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Transaction> findChain(String keyHash, int fromSequence) {
+        return chain(keyHash, fromSequence, 0);
+    }
+
+    @Override
+    public Cursor<Transaction> iterateChain(String keyHash, int fromSequence, int pageSize) {
+        Iterator<Transaction> page = chain(keyHash, fromSequence, pageSize).iterator();
+        return new Cursor<Transaction>() {
+            @Override
+            public boolean hasNext() {
+                return page.hasNext();
+            }
+
+            @Override
+            public Transaction next() {
+                return page.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private List<Transaction> chain(String keyHash, int fromSequence, int pageSize) {
+        awaitHistoryBelow(keyHash, fromSequence);
+        lock.readLock().lock();
+        try {
+            List<Transaction> chain = chains.getOrDefault(keyHash, Collections.emptyList());
+            int from = Math.max(0, Math.min(fromSequence - baseOf(keyHash), chain.size()));
+            int to = pageSize > 0 ? Math.min(chain.size(), from + pageSize) : chain.size();
+            List<Transaction> copies = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                copies.add(copy(chain.get(i)));
+            }
+            return copies;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean hasTransactionAt(String keyHash, int sequence, String transactionHash) {
+        awaitHistoryBelow(keyHash, sequence);
+        lock.readLock().lock();
+        try {
+            List<Transaction> chain = chains.get(keyHash);
+            int index = sequence - baseOf(keyHash);
+            return chain != null && index >= 0 && index < chain.size()
+                    && chain.get(index).getTransactionHash().equals(transactionHash);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Transaction> findChainHeads() {
+        lock.readLock().lock();
+        try {
+            List<Transaction> heads = new ArrayList<>(chains.size());
+            for (List<Transaction> chain : chains.values()) {
+                heads.add(copy(chain.get(chain.size() - 1)));
+            }
+            return heads;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void createAccount(Account account) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            checkNewAccount(account);
+            accounts.put(account.getKeyHash(), new Account(account.getKeyHash(), account.getEncodedKey(), account.getAmount()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void appendSend(Transaction send, ChainHead previous, Account source) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            checkAppend(Collections.singletonList(send), null, source);
+            add(send);
+            accounts.get(source.getKeyHash()).setAmount(source.getAmount());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void appendReceive(Transaction receive, Transaction sent, ChainHead previous, Account dest) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            checkAppend(Collections.singletonList(receive), sent, dest);
+            Transaction stored = transactions.get(sent.getId());
+            stored.setPending(false);
+            Set<String> pending = pendingIncoming.get(stored.getTo().getKeyHash());
+            if (pending != null) {
+                pending.remove(stored.getId());
+            }
+            add(receive);
+            accounts.get(dest.getKeyHash()).setAmount(dest.getAmount());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void appendChain(List<Transaction> added, ChainHead previous) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            checkAppend(added, null, null);
+            for (Transaction t : added) {
+                add(t);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* Throws if createAccount would, without changing anything */
+    protected void validateNewAccount(Account account) throws SQLException {
+        lock.readLock().lock();
+        try {
+            checkNewAccount(account);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* Throws if appending added, completing received and updating balance would, without changing anything */
+    protected void validateAppend(List<Transaction> added, Transaction received, Account balance) throws SQLException {
+        lock.readLock().lock();
+        try {
+            checkAppend(added, received, balance);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* What a checkpoint keeps: every account, the head of every chain and the sends not received yet */
+    protected static class Snapshot {
+        final List<Account> accounts;
+        final List<Transaction> heads;
+        final List<Transaction> pending;
+
+        Snapshot(List<Account> accounts, List<Transaction> heads, List<Transaction> pending) {
+            this.accounts = accounts;
+            this.heads = heads;
+            this.pending = pending;
+        }
+    }
+
+    protected Snapshot snapshot() {
+        lock.readLock().lock();
+        try {
+            List<Account> accountCopies = new ArrayList<>(accounts.size());
+            for (Account account : accounts.values()) {
+                accountCopies.add(new Account(account.getKeyHash(), account.getEncodedKey(), account.getAmount()));
+            }
+            List<Transaction> pending = new ArrayList<>();
+            for (Set<String> ids : pendingIncoming.values()) {
+                for (String id : ids) {
+                    pending.add(copy(transactions.get(id)));
+                }
+            }
+            return new Snapshot(accountCopies, findChainHeads(), pending);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* Starts an empty store from a snapshot, lookups that need older transactions wait for restoreHistory */
+    protected void restoreCheckpoint(Snapshot snapshot) {
+        lock.writeLock().lock();
+        try {
+            history = new CountDownLatch(1);
+            for (Account account : snapshot.accounts) {
+                accounts.put(account.getKeyHash(), new Account(account.getKeyHash(), account.getEncodedKey(), account.getAmount()));
+            }
+            for (Transaction head : snapshot.heads) {
+                Transaction stored = new Transaction(head);
+                String owner = stored.getOwner().getKeyHash();
+                chains.put(owner, new ArrayList<>(Collections.singletonList(stored)));
+                if (stored.getSequence() > 0) {
+                    bases.put(owner, stored.getSequence());
+                }
+                index(stored);
+            }
+            for (Transaction pending : snapshot.pending) {
+                if (!transactions.containsKey(pending.getId())) {
+                    index(new Transaction(pending));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Puts back the transactions that came before the checkpoint, in the order they were appended.
+     * receivedIds are the sends among them that were received before the checkpoint.
+     */
+    protected void restoreHistory(List<Transaction> archived, Set<String> receivedIds) {
+        lock.writeLock().lock();
+        try {
+            Map<String, List<Transaction>> prefixes = new HashMap<>();
+            for (Transaction t : archived) {
+                String owner = t.getOwner().getKeyHash();
+                if (t.getSequence() >= baseOf(owner)) {
+                    continue;
+                }
+                // Sends still pending at the checkpoint are in memory already, and may have been received since
+                Transaction stored = transactions.get(t.getId());
+                if (stored == null) {
+                    stored = new Transaction(t);
+                    if (receivedIds.contains(stored.getId())) {
+                        stored.setPending(false);
+                    }
+                    index(stored);
+                }
+                prefixes.computeIfAbsent(owner, k -> new ArrayList<>()).add(stored);
+            }
+            for (Map.Entry<String, List<Transaction>> prefix : prefixes.entrySet()) {
+                String owner = prefix.getKey();
+                chains.get(owner).addAll(0, prefix.getValue());
+                int base = baseOf(owner) - prefix.getValue().size();
+                if (base > 0) {
+                    bases.put(owner, base);
+                } else {
+                    bases.remove(owner);
+                }
+            }
+            if (!bases.isEmpty()) {
+                System.out.println("History is missing the start of " + bases.size() + " chains");
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* Lets the lookups waiting for the history go, whether or not it could be restored */
+    protected void finishHistory() {
+        CountDownLatch loading = history;
+        if (loading != null) {
+            loading.countDown();
+        }
+    }
+
+    /* Whether a transaction with this hash may be among those not restored yet, a store that can tell saves the wait */
+    protected boolean historyMightContain(String transactionHash) {
+        return true;
+    }
+
+    /* Whether a receive of the send with this hash may be among those not restored yet */
+    protected boolean historyMightHaveReceived(String senderSigHash) {
+        return true;
+    }
+
+    protected boolean isLoadingHistory() {
+        CountDownLatch loading = history;
+        return loading != null && loading.getCount() > 0;
+    }
+
+    private void awaitHistory() {
+        CountDownLatch loading = history;
+        if (loading == null) {
+            return;
+        }
+        try {
+            loading.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void awaitHistoryBelow(String keyHash, int sequence) {
+        if (!isLoadingHistory()) {
+            return;
+        }
+        boolean missing;
+        lock.readLock().lock();
+        try {
+            missing = sequence < baseOf(keyHash);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (missing) {
+            awaitHistory();
+        }
+    }
+
+    private int baseOf(String keyHash) {
+        return bases.getOrDefault(keyHash, 0);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return "--- Ledger Store ---" +
+                    "\nType: " + getClass().getSimpleName() +
+                    "\nAccounts: " + accounts.size() +
+                    "\nTransactions: " + transactions.size() + (isLoadingHistory() ? " (loading history)" : "") +
+                    "\n-------";
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void checkNewAccount(Account account) throws SQLException {
+        if (accounts.containsKey(account.getKeyHash())) {
+            throw new SQLException("Account already stored: " + account.getKeyHash());
+        }
+    }
+
+    /* Rejects what the database's keys and unique indexes would have rejected */
+    private void checkAppend(List<Transaction> added, Transaction received, Account balance) throws SQLException {
+        if (balance != null && !accounts.containsKey(balance.getKeyHash())) {
+            throw new SQLException("Account isn't stored: " + balance.getKeyHash());
+        }
+        if (received != null && !transactions.containsKey(received.getId())) {
+            throw new SQLException("Received transaction isn't stored: " + received.getId());
+        }
+        Map<String, Integer> nextSequence = new HashMap<>();
+        Set<String> hashes = new HashSet<>();
+        for (Transaction t : added) {
+            String owner = t.getOwner().getKeyHash();
+            int expected = nextSequence.computeIfAbsent(owner, k -> baseOf(k) + chains.getOrDefault(k, Collections.emptyList()).size());
+            if (transactions.containsKey(t.getId()) || byHash.containsKey(t.getTransactionHash()) || !hashes.add(t.getTransactionHash())) {
+                throw new SQLException("Transaction already stored: " + t.getId());
+            }
+            if (t.getSequence() != expected) {
+                throw new SQLException("Transaction " + t.getId() + " doesn't continue its chain at " + expected);
+            }
+            nextSequence.put(owner, expected + 1);
+        }
+    }
+
+    private void add(Transaction t) {
+        Transaction stored = new Transaction(t);
+        chains.computeIfAbsent(stored.getOwner().getKeyHash(), k -> new ArrayList<>()).add(stored);
+        index(stored);
+    }
+
+    private void index(Transaction stored) {
+        transactions.put(stored.getId(), stored);
+        byHash.put(stored.getTransactionHash(), stored);
+        if (stored.getSenderSigHash() != null) {
+            receivedSenderSigs.add(stored.getSenderSigHash());
+        }
+        if (stored.isPending() && !stored.isReceiving()) {
+            pendingIncoming.computeIfAbsent(stored.getTo().getKeyHash(), k -> new LinkedHashSet<>()).add(stored.getId());
+        }
+    }
+
+    /* The head of its chain is the only transaction marked last, as HDSLib expects from the database */
+    private Transaction copy(Transaction stored) {
+        if (stored == null) {
+            return null;
+        }
+        Transaction copy = new Transaction(stored);
+        List<Transaction> chain = chains.get(stored.getOwner().getKeyHash());
+        copy.setLast(chain != null && chain.get(chain.size() - 1) == stored);
+        return copy;
+    }
+}
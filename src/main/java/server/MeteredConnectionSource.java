@@ -0,0 +1,148 @@
+package server;
+
+import com.j256.ormlite.jdbc.JdbcPooledConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Connection pool for the ledger database. ORMLite's pool only caps idle connections, so checkouts
+ * are bounded here by a semaphore, and the time spent waiting for it is recorded.
+ * Connections saved for a running transaction are handed back without touching the semaphore,
+ * the same way the underlying pool reuses them. A thread only takes a permit for its first connection:
+ * ORMLite opens nested connections while loading foreign fields, and making those wait on the
+ * semaphore could leave every thread holding one connection and waiting for a second.
+ */
+public class MeteredConnectionSource extends JdbcPooledConnectionSource {
+    private final int maxConnections;
+    private final long acquireTimeoutMillis;
+    private final Semaphore permits;
+    private final ThreadLocal<int[]> held = ThreadLocal.withInitial(() -> new int[1]);
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+
+    public MeteredConnectionSource(String url, int minConnections, int maxConnections, long idleMillis, long checkMillis, long acquireTimeoutMillis) throws SQLException {
+        super(url);
+        this.maxConnections = maxConnections;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.permits = new Semaphore(maxConnections, true);
+        setMaxConnectionsFree(maxConnections);
+        setMaxConnectionAgeMillis(idleMillis);
+        setCheckConnectionsEveryMillis(checkMillis);
+        warmUp(minConnections);
+    }
+
+    private void warmUp(int count) throws SQLException {
+        List<DatabaseConnection> opened = new ArrayList<>();
+        for (int i = 0; i < Math.min(count, maxConnections); i++) {
+            opened.add(getReadWriteConnection());
+        }
+        for (DatabaseConnection connection : opened) {
+            releaseConnection(connection);
+        }
+    }
+
+    @Override
+    public DatabaseConnection getReadOnlyConnection() throws SQLException {
+        return getReadWriteConnection();
+    }
+
+    @Override
+    public DatabaseConnection getReadWriteConnection() throws SQLException {
+        DatabaseConnection saved = getSavedConnection();
+        if (saved != null) {
+            return saved;
+        }
+        int[] count = held.get();
+        if (count[0] == 0) {
+            acquirePermit();
+        }
+        try {
+            DatabaseConnection connection = super.getReadWriteConnection();
+            count[0]++;
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            if (count[0] == 0) {
+                permits.release();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void releaseConnection(DatabaseConnection connection) throws SQLException {
+        if (isSavedConnection(connection)) {
+            super.releaseConnection(connection);
+            return;
+        }
+        try {
+            super.releaseConnection(connection);
+        } finally {
+            int[] count = held.get();
+            if (count[0] > 0 && --count[0] == 0) {
+                permits.release();
+            }
+        }
+    }
+
+    private void acquirePermit() throws SQLException {
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        long waited = System.nanoTime() - start;
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        if (!acquired) {
+            timeouts.increment();
+            throw new SQLException("Timed out after " + acquireTimeoutMillis + "ms waiting for a database connection");
+        }
+        acquisitions.increment();
+    }
+
+    public int getConnectionsInUse() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = acquisitions.sum() + timeouts.sum();
+        return count == 0 ? 0 : waitNanos.sum() / 1e6 / count;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "--- Connection Pool ---" +
+                "\nIn use: " + getConnectionsInUse() + "/" + maxConnections +
+                "\nIdle: " + getCurrentConnectionsFree() +
+                "\nAcquisitions: " + getAcquisitions() +
+                "\nAverage wait: " + String.format("%.3f", getAverageWaitMillis()) + "ms" +
+                "\nMax wait: " + String.format("%.3f", getMaxWaitMillis()) + "ms" +
+                "\nTimeouts: " + getTimeouts() +
+                "\n-------";
+    }
+}
@@ -0,0 +1,196 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.nio.file.StandardOpenOption.*;
+import static server.LedgerRecords.*;
+
+/*
+ * The ledger operations of a store, appended to one file and forced to disk before the store applies them.
+ * Like LogLedgerStore, appends go through one writer thread so operations that queue up during a force share
+ * the next one. Every record starts with its sequence number, an operation the store failed to apply is
+ * cancelled by a later record naming it. Once the store has made everything applied durable the file is
+ * truncated, see H2LedgerStore.
+ */
+class WriteAheadLog {
+    private static final byte CANCEL = 0;
+
+    /* Applies an operation again, returns false when the store already had it */
+    interface Redo {
+        boolean apply(byte type, DataInputStream in) throws IOException, SQLException;
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final BlockingQueue<Append> queue = new LinkedBlockingQueue<>();
+    private final Append stop = new Append(null);
+    private final Thread writer;
+    private long nextSequence;
+
+    WriteAheadLog(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, CREATE, READ, WRITE);
+        this.writer = new Thread(this::run, "hds-ledger-wal");
+        this.writer.setDaemon(true);
+    }
+
+    /*
+     * Hands the operations left from before a stop to redo in the order they were appended, skipping the
+     * cancelled ones, and drops what follows the last complete record. Must run before the first append.
+     * Returns how many the store didn't have yet.
+     */
+    int replay(Redo redo) throws IOException {
+        ByteBuffer contents = ByteBuffer.allocate((int) channel.size());
+        while (contents.hasRemaining()) {
+            if (channel.read(contents, contents.position()) < 0) {
+                break;
+            }
+        }
+        Map<Long, byte[]> operations = new LinkedHashMap<>();
+        int end = scan(contents, (offset, payload) -> {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            long sequence = in.readLong();
+            nextSequence = sequence + 1;
+            if (in.readByte() == CANCEL) {
+                operations.remove(in.readLong());
+            } else {
+                operations.put(sequence, payload);
+            }
+        });
+        int replayed = 0;
+        for (Map.Entry<Long, byte[]> operation : operations.entrySet()) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(operation.getValue()));
+            in.readLong();
+            try {
+                if (redo.apply(in.readByte(), in)) {
+                    replayed++;
+                }
+            } catch (SQLException e) {
+                System.out.println("Skipping operation " + operation.getKey() + " of " + file + ": " + e.getMessage());
+            }
+        }
+        if (end < channel.size()) {
+            System.out.println("Dropped incomplete records at " + end + " of " + file);
+            channel.truncate(end);
+            channel.force(false);
+        }
+        channel.position(end);
+        writer.start();
+        return replayed;
+    }
+
+    /* Returns the operation's sequence number once it is on disk */
+    long append(byte type, Encoder encoder) throws SQLException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            encoder.write(out);
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        Append append = new Append(bytes.toByteArray());
+        queue.add(append);
+        try {
+            return append.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while appending to " + file, e);
+        } catch (ExecutionException e) {
+            throw new SQLException("Couldn't append to " + file, e.getCause());
+        }
+    }
+
+    /* Keeps a replay from applying an operation the store refused */
+    void cancel(long sequence) {
+        try {
+            append(CANCEL, out -> out.writeLong(sequence));
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    /* Only once everything appended is durable in the store, and with no append in progress */
+    void truncate() throws IOException {
+        channel.truncate(0);
+        channel.force(false);
+    }
+
+    void close() {
+        queue.add(stop);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void run() {
+        List<Append> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch);
+            stopping = batch.remove(stop);
+            try {
+                // Sequence numbers follow the order in the file
+                List<ByteBuffer> records = new ArrayList<>(batch.size());
+                for (Append append : batch) {
+                    append.sequence = nextSequence++;
+                    records.add(frame(out -> {
+                        out.writeLong(append.sequence);
+                        out.write(append.operation);
+                    }));
+                }
+                ByteBuffer[] buffers = records.toArray(new ByteBuffer[0]);
+                if (buffers.length > 0) {
+                    while (buffers[buffers.length - 1].hasRemaining()) {
+                        channel.write(buffers);
+                    }
+                    channel.force(false);
+                }
+                for (Append append : batch) {
+                    append.done.complete(append.sequence);
+                }
+            } catch (IOException e) {
+                for (Append append : batch) {
+                    append.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private static class Append {
+        private final byte[] operation;
+        private final CompletableFuture<Long> done = new CompletableFuture<>();
+        private long sequence;
+
+        private Append(byte[] operation) {
+            this.operation = operation;
+        }
+    }
+}
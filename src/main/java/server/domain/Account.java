@@ -1,17 +1,11 @@
 package server.domain;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.j256.ormlite.dao.ForeignCollection;
 import com.j256.ormlite.field.DataType;
 import com.j256.ormlite.field.DatabaseField;
-import com.j256.ormlite.field.ForeignCollectionField;
 import com.j256.ormlite.table.DatabaseTable;
 
 import java.io.Serializable;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.util.Base64;
 
 @SuppressWarnings("serial")
 @DatabaseTable(tableName = "accounts")
@@ -19,30 +13,25 @@ public class Account implements Serializable{
 
 	@DatabaseField(id=true)
     private String keyHash;
+    // X.509 encoding of the key, HDSLib decodes it through HDSCrypto's key cache
     @JsonIgnore
-    @DatabaseField(dataType = DataType.SERIALIZABLE)
-    private PublicKey key;
+    @DatabaseField(dataType = DataType.BYTE_ARRAY)
+    private byte[] encodedKey;
+    // Only the account's LedgerWriter thread sets it, request threads read it without going through that writer
     @DatabaseField
-    private int amount;
-    @JsonIgnore
-    @ForeignCollectionField(eager=true)
-    private ForeignCollection<Transaction> transactions;
+    private volatile int amount;
 
     public Account() {
 
     }
 
-    public Account(PublicKey key) {
-        this.key = key;
-        this.amount = 100;
-        try {
-            MessageDigest digester = MessageDigest.getInstance("SHA-256");
-            digester.update(key.getEncoded());
-            keyHash = Base64.getEncoder().encodeToString(digester.digest());
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
+    /* An account as a LedgerStore keeps it. encodedKey is null for accounts a transaction only refers to */
+    public Account(String keyHash, byte[] encodedKey, int amount) {
+        this.keyHash = keyHash;
+        this.encodedKey = encodedKey;
+        this.amount = amount;
     }
+
     public int getAmount() {
         return amount;
     }
@@ -59,19 +48,10 @@ public class Account implements Serializable{
         return keyHash;
     }
 
-    public PublicKey getKey() {
-        return key;
+    public byte[] getEncodedKey() {
+        return encodedKey;
     }
 
-    public void setKey(PublicKey key) {
-        this.key = key;
-    }
-
-    /* FIXME: transaction list only keeps sent transactions
-    public ForeignCollection<Transaction> getTransactions() {
-        return transactions;
-    }*/
-
     @Override
     public String toString() {
         return "--- Account Object ---" +
@@ -0,0 +1,35 @@
+package server.domain;
+
+/* Latest entry of an account's transaction chain, kept in memory so the write path never scans the history */
+public class ChainHead {
+
+    private final String transactionId;
+    private final String transactionHash;
+    private final int sequence;
+
+    public ChainHead(String transactionId, String transactionHash, int sequence) {
+        this.transactionId = transactionId;
+        this.transactionHash = transactionHash;
+        this.sequence = sequence;
+    }
+
+    public ChainHead(Transaction transaction) {
+        this(transaction.getId(), transaction.getTransactionHash(), transaction.getSequence());
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public String getTransactionHash() {
+        return transactionHash;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public String nextId(String keyHash) {
+        return (sequence + 1) + "-" + keyHash;
+    }
+}
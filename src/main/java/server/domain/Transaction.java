@@ -1,14 +1,13 @@
 package server.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.j256.ormlite.field.DataType;
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.Serializable;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
 
 @SuppressWarnings("serial")
 @DatabaseTable(tableName = "transactions")
@@ -18,21 +17,32 @@ public class Transaction implements Serializable, Comparable{
     private String id;
 	@DatabaseField
     private boolean last;
-    @DatabaseField(foreign = true, foreignAutoRefresh = true)
+    // Accounts are referenced by keyHash only, HDSLib.getAccount loads the rest when it is needed
+    @JsonIgnoreProperties("amount")
+    @DatabaseField(foreign = true)
     private Account from;
-    @DatabaseField(foreign = true, foreignAutoRefresh = true)
+    @JsonIgnoreProperties("amount")
+    @DatabaseField(foreign = true)
     private Account to;
     @DatabaseField
     private int amount;
 
-    @DatabaseField(foreign = true, foreignAutoRefresh = true)
+    @JsonIgnoreProperties("amount")
+    @DatabaseField(foreign = true, indexName = "transactions_owner_sequence_idx")
     private Account owner;
+    @DatabaseField(indexName = "transactions_owner_sequence_idx")
+    private int sequence; // Position of this transaction in the owner's chain, matches the prefix of the id
     @DatabaseField
     private boolean receiving;
     @DatabaseField
     private int senderId; // ID of the send transaction associated with this one. Null if a transaction is a send
+    @DatabaseField
+    private String senderTransactionId; // ID of the send transaction this receive completes, it is part of the receive's signature. Null if a transaction is a send
     @DatabaseField(dataType=DataType.BYTE_ARRAY)
     private byte[] senderSig; // Null if transaction is a send
+    @JsonIgnore
+    @DatabaseField(index = true)
+    private String senderSigHash; // Lets a second receive of the same send be found through the index. Not unique, H2 scans every null on unique inserts
     @DatabaseField
     private boolean pending;
 
@@ -40,7 +50,7 @@ public class Transaction implements Serializable, Comparable{
     private String timestamp;
     @DatabaseField(dataType=DataType.BYTE_ARRAY)
     private byte[] sig;
-    @DatabaseField
+    @DatabaseField(uniqueIndex = true)
     private String transactionHash;
     @DatabaseField
     private String previousTransaction;
@@ -49,12 +59,14 @@ public class Transaction implements Serializable, Comparable{
 
     }
 
-    public Transaction(String id, Account from, Account to, int amount, String timestamp, String previousTransaction, byte[] sig) {
-        this(id, from, to, amount, timestamp, true, false, previousTransaction, sig);
+    /* transactionHash is the hash of sig, HDSLib and the stores compute it */
+    public Transaction(String id, Account from, Account to, int amount, String timestamp, String previousTransaction, byte[] sig, String transactionHash) {
+        this(id, from, to, amount, timestamp, true, false, previousTransaction, sig, transactionHash);
     }
 
-    public Transaction(String id, Account from, Account to, int amount, String timestamp, boolean pending, boolean receiving,String previousTransaction, byte[] sig) {
+    public Transaction(String id, Account from, Account to, int amount, String timestamp, boolean pending, boolean receiving,String previousTransaction, byte[] sig, String transactionHash) {
         this.id = id;
+        this.sequence = sequenceOf(id);
         this.from = from;
         this.to = to;
         this.amount = amount;
@@ -68,14 +80,7 @@ public class Transaction implements Serializable, Comparable{
             this.previousTransaction = "000000";
         }
         this.sig = sig;
-
-        try {
-            MessageDigest digester = MessageDigest.getInstance("SHA-256");
-            digester.update(sig);
-            this.transactionHash = Base64.getEncoder().encodeToString(digester.digest());
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
+        this.transactionHash = transactionHash;
 
         if (receiving) {
             this.owner = to;
@@ -84,10 +89,37 @@ public class Transaction implements Serializable, Comparable{
         }
     }
 
-    public static Transaction ReceiveTransaction(String id, Transaction transaction, String timestamp, String previousTransaction, byte[] sig) {
-        Transaction receive = new Transaction(id, transaction.from, transaction.to, transaction.amount, timestamp, false, true, previousTransaction, sig);
+    /* A copy that refers to its accounts by keyHash only, like the rows ORMLite loads */
+    public Transaction(Transaction other) {
+        this.id = other.id;
+        this.last = other.last;
+        this.from = reference(other.from);
+        this.to = reference(other.to);
+        this.amount = other.amount;
+        this.owner = reference(other.owner);
+        this.sequence = other.sequence;
+        this.receiving = other.receiving;
+        this.senderId = other.senderId;
+        this.senderTransactionId = other.senderTransactionId;
+        this.senderSig = other.senderSig;
+        this.senderSigHash = other.senderSigHash;
+        this.pending = other.pending;
+        this.timestamp = other.timestamp;
+        this.sig = other.sig;
+        this.transactionHash = other.transactionHash;
+        this.previousTransaction = other.previousTransaction;
+    }
+
+    private static Account reference(Account account) {
+        return account == null ? null : new Account(account.getKeyHash(), null, 0);
+    }
+
+    public static Transaction ReceiveTransaction(String id, Transaction transaction, String timestamp, String previousTransaction, byte[] sig, String transactionHash) {
+        Transaction receive = new Transaction(id, transaction.from, transaction.to, transaction.amount, timestamp, false, true, previousTransaction, sig, transactionHash);
         transaction.setPending(false);
-        receive.setSenderSig(transaction.getSig());
+        // The send's signature, so its hash is the send's transactionHash
+        receive.setSenderSig(transaction.getSig(), transaction.getTransactionHash());
+        receive.setSenderTransactionId(transaction.getId());
         return receive;
     }
 
@@ -117,12 +149,21 @@ public class Transaction implements Serializable, Comparable{
 
     public void setId(String id) {
         this.id = id;
+        this.sequence = sequenceOf(id);
     }
 
     public String getId() {
         return id;
     }
 
+    public int getSequence() {
+        return sequence;
+    }
+
+    public static int sequenceOf(String id) {
+        return Integer.parseInt(id.substring(0, id.indexOf("-")));
+    }
+
     public boolean isPending(){
         return this.pending;
     }
@@ -191,8 +232,21 @@ public class Transaction implements Serializable, Comparable{
         return senderSig;
     }
 
-    public void setSenderSig(byte[] senderSig) {
+    public void setSenderSig(byte[] senderSig, String senderSigHash) {
         this.senderSig = senderSig;
+        this.senderSigHash = senderSigHash;
+    }
+
+    public String getSenderTransactionId() {
+        return senderTransactionId;
+    }
+
+    public void setSenderTransactionId(String senderTransactionId) {
+        this.senderTransactionId = senderTransactionId;
+    }
+
+    public String getSenderSigHash() {
+        return senderSigHash;
     }
 
     public int getSenderId() {
@@ -205,7 +259,7 @@ public class Transaction implements Serializable, Comparable{
 
     @Override
     public String toString() {
-        return "From: " + from.getKey() + "\nTo: " + to.getKey() + "\nAmount: " + amount;
+        return "From: " + from.getKeyHash() + "\nTo: " + to.getKeyHash() + "\nAmount: " + amount;
     }
 
     @Override
@@ -242,10 +296,6 @@ public class Transaction implements Serializable, Comparable{
     @Override
     public int compareTo(@NotNull Object o) {
         Transaction other = (Transaction) o;
-
-        Integer thisIndex = Integer.parseInt(this.getId().substring(0, this.getId().indexOf("-")));
-        Integer otherIndex = Integer.parseInt(other.getId().substring(0, other.getId().indexOf("-")));
-
-        return thisIndex.compareTo(otherIndex);
+        return Integer.compare(this.sequence, other.sequence);
     }
 }
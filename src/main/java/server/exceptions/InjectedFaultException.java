@@ -0,0 +1,10 @@
+package server.exceptions;
+
+@SuppressWarnings("serial")
+public class InjectedFaultException extends Exception{
+
+	public InjectedFaultException(String message) {
+		super(message);
+	}
+
+}
@@ -1,19 +1,26 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import server.HDSLib;
+import server.LedgerStore;
 import server.domain.Transaction;
 import server.exceptions.AccountNotFoundException;
+import server.exceptions.InvalidSignatureException;
 import server.exceptions.NullArgumentException;
+import server.exceptions.WritebackMismatchedTransactionException;
 
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.security.*;
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class AuditTest {
 	private HDSLib hdsLib;
@@ -55,8 +62,7 @@ public class AuditTest {
 	@After
 	public void tearDown() throws Exception {
 		HDSLib.forceReset();
-		Files.deleteIfExists(Paths.get("./db/test0.mv.db"));
-		Files.deleteIfExists(Paths.get("./db/test0.trace.db"));
+		TestAux.deleteLedger("test0");
 	}
 
 	@Test
@@ -90,6 +96,116 @@ public class AuditTest {
 		assertEquals(t, receiverList.get(0));
 	}
 
+	@Test
+	public void auditPageInChainOrder() throws Exception{
+		TestAux.registerHelper(pubKey1, privKey1, hdsLib);
+		TestAux.registerHelper(pubKey2, privKey2, hdsLib);
+		String keyHash = TestAux.hashKey(pubKey1);
+
+		List<Transaction> sent = new ArrayList<>();
+		String previous = "000000";
+		for (int i = 0; i < 3; i++) {
+			Transaction t = TestAux.sendAmountHelper(pubKey1, pubKey2, 10, previous, privKey1, hdsLib);
+			sent.add(t);
+			previous = t.getTransactionHash();
+		}
+
+		assertEquals(sent, page(keyHash, 0, 0));
+		assertEquals(sent.subList(1, 3), page(keyHash, 1, 0));
+		assertEquals(sent.subList(1, 2), page(keyHash, 1, 1));
+		assertEquals(0, page(keyHash, 3, 2).size());
+	}
+
+	@Test
+	public void auditKnownHashOnChain() throws Exception{
+		TestAux.registerHelper(pubKey1, privKey1, hdsLib);
+		TestAux.registerHelper(pubKey2, privKey2, hdsLib);
+		String keyHash = TestAux.hashKey(pubKey1);
+
+		Transaction first = TestAux.sendAmountHelper(pubKey1, pubKey2, 10, "000000", privKey1, hdsLib);
+		Transaction second = TestAux.sendAmountHelper(pubKey1, pubKey2, 10, first.getTransactionHash(), privKey1, hdsLib);
+
+		assertTrue(hdsLib.hasTransactionAt(keyHash, 0, first.getTransactionHash()));
+		assertTrue(hdsLib.hasTransactionAt(keyHash, 1, second.getTransactionHash()));
+		assertFalse(hdsLib.hasTransactionAt(keyHash, 1, first.getTransactionHash()));
+		assertFalse(hdsLib.hasTransactionAt(keyHash, 2, second.getTransactionHash()));
+	}
+
+	@Test
+	public void writebackVerifiesSignatures() throws Exception{
+		TestAux.registerHelper(pubKey1, privKey1, hdsLib);
+		TestAux.registerHelper(pubKey2, privKey2, hdsLib);
+		Transaction sent = TestAux.sendAmountHelper(pubKey1, pubKey2, 30, "000000", privKey1, hdsLib);
+		TestAux.receiveAmountHelper(sent.getId(), sent.getSig(), privKey2, "000000", hdsLib);
+
+		// Both the send and the receive chains verify, so writing them back changes nothing
+		hdsLib.joinLedger(TestAux.hashKey(pubKey1), ledgerJson(hdsLib.audit(TestAux.hashKey(pubKey1))));
+		hdsLib.joinLedger(TestAux.hashKey(pubKey2), ledgerJson(hdsLib.audit(TestAux.hashKey(pubKey2))));
+
+		ObjectNode forged = ledgerJson(hdsLib.audit(TestAux.hashKey(pubKey1)));
+		((ObjectNode) forged.get("transactions").get(0)).put("amount", 3000);
+		try {
+			hdsLib.joinLedger(TestAux.hashKey(pubKey1), forged);
+			fail("Forged writeback was accepted");
+		} catch (InvalidSignatureException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void writebackOfSuffixJoinsBySequence() throws Exception{
+		TestAux.registerHelper(pubKey1, privKey1, hdsLib);
+		TestAux.registerHelper(pubKey2, privKey2, hdsLib);
+		String keyHash = TestAux.hashKey(pubKey1);
+		String previous = "000000";
+		for (int i = 0; i < 3; i++) {
+			previous = TestAux.sendAmountHelper(pubKey1, pubKey2, 10, previous, privKey1, hdsLib).getTransactionHash();
+		}
+		List<Transaction> chain = hdsLib.audit(keyHash);
+
+		// A replica that only has the first transaction
+		HDSLib.forceReset();
+		TestAux.deleteLedger("test0");
+		hdsLib = HDSLib.getTestingInstance();
+		TestAux.registerHelper(pubKey1, privKey1, hdsLib);
+		TestAux.registerHelper(pubKey2, privKey2, hdsLib);
+		hdsLib.joinLedger(keyHash, ledgerJson(chain.subList(0, 1)));
+
+		try {
+			hdsLib.joinLedger(keyHash, ledgerJson(chain.subList(2, 3)));
+			fail("A suffix that skips a transaction was accepted");
+		} catch (WritebackMismatchedTransactionException e) {
+			// Expected
+		}
+		hdsLib.joinLedger(keyHash, ledgerJson(chain.subList(1, 3)));
+		assertEquals(chain, hdsLib.audit(keyHash));
+		assertEquals(chain.get(2).getTransactionHash(), hdsLib.getChainHead(keyHash).getTransactionHash());
+
+		// Writing back a suffix it already has changes nothing
+		hdsLib.joinLedger(keyHash, ledgerJson(chain.subList(1, 3)));
+		assertEquals(chain, hdsLib.audit(keyHash));
+	}
+
+	private static ObjectNode ledgerJson(List<Transaction> transactions) {
+		ObjectMapper mapper = new ObjectMapper();
+		ObjectNode json = mapper.createObjectNode();
+		json.set("transactions", mapper.valueToTree(transactions));
+		return json;
+	}
+
+	private List<Transaction> page(String keyHash, int fromSequence, int pageSize) throws Exception{
+		List<Transaction> page = new ArrayList<>();
+		LedgerStore.Cursor<Transaction> iterator = hdsLib.auditPage(keyHash, fromSequence, pageSize);
+		try {
+			while (iterator.hasNext()) {
+				page.add(iterator.next());
+			}
+		} finally {
+			iterator.close();
+		}
+		return page;
+	}
+
 	@Test(expected = AccountNotFoundException.class)
 	public void auditNonExistingKey() throws Exception{
 		TestAux.registerHelper(pubKey1, privKey1, hdsLib);
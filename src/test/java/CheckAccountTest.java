@@ -9,8 +9,6 @@ import server.domain.Transaction;
 import server.exceptions.AccountNotFoundException;
 import server.exceptions.NullArgumentException;
 
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.security.*;
 
 import static org.junit.Assert.assertEquals;
@@ -56,8 +54,7 @@ public class CheckAccountTest {
 	@After
 	public void tearDown() throws Exception {
 		HDSLib.forceReset();
-		Files.deleteIfExists(Paths.get("./db/test0.mv.db"));
-		Files.deleteIfExists(Paths.get("./db/test0.trace.db"));
+		TestAux.deleteLedger("test0");
 	}
 
 	@Test
@@ -96,6 +93,32 @@ public class CheckAccountTest {
 		assertEquals(0, sender.getPendingTransactions().size());
 	}
 
+	@Test
+	public void checkAccountCachedBalanceWrittenThrough() throws Exception {
+		// Restarting only keeps the ledger on a store that persists it
+		HDSLib.forceReset();
+		hdsLib = HDSLib.getTestingInstance("h2");
+		Account a1 = TestAux.registerHelper(pubKey1, privKey1, hdsLib);
+		Account a2 = TestAux.registerHelper(pubKey2, privKey2, hdsLib);
+
+		long hits = hdsLib.getAccountCache().getHits();
+		hdsLib.checkAccount(a1.getKeyHash());
+		hdsLib.checkAccount(a1.getKeyHash());
+		assertEquals(hits + 2, hdsLib.getAccountCache().getHits());
+
+		Transaction t = TestAux.sendAmountHelper(pubKey2, pubKey1, 30, "000000", privKey2, hdsLib);
+		TestAux.receiveAmountHelper(t.getId(), t.getSig(), privKey1, "000000", hdsLib);
+		assertEquals(70, hdsLib.checkAccount(a2.getKeyHash()).getAmount());
+		assertEquals(130, hdsLib.checkAccount(a1.getKeyHash()).getAmount());
+
+		// A fresh instance starts with an empty cache, so these come from the database
+		HDSLib.forceReset();
+		hdsLib = HDSLib.getTestingInstance("h2");
+		assertEquals(70, hdsLib.checkAccount(a2.getKeyHash()).getAmount());
+		assertEquals(130, hdsLib.checkAccount(a1.getKeyHash()).getAmount());
+		assertEquals(0, hdsLib.getAccountCache().getHits());
+	}
+
 	@Test(expected = AccountNotFoundException.class)
 	public void checkAccountNonExistingKey() throws Exception {
 		TestAux.registerHelper(pubKey1, privKey1, hdsLib);
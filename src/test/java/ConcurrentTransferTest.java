@@ -0,0 +1,133 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import server.HDSLib;
+import server.domain.Account;
+import server.domain.Transaction;
+
+import java.security.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentTransferTest {
+	private static final int ACCOUNTS = 8;
+	private static final int ROUNDS = 15;
+
+	private HDSLib hdsLib;
+
+	private static PublicKey[] pubKeys = new PublicKey[ACCOUNTS];
+	private static PrivateKey[] privKeys = new PrivateKey[ACCOUNTS];
+
+	@BeforeClass
+	public static void setUpAll() {
+		System.setProperty("com.j256.ormlite.logger.type", "LOCAL");
+		System.setProperty("com.j256.ormlite.logger.level", "ERROR");
+
+		KeyPairGenerator keyGen = null;
+		SecureRandom random = null;
+		try {
+			keyGen = KeyPairGenerator.getInstance("EC", "SunEC");
+			random = SecureRandom.getInstance("SHA1PRNG", "SUN");
+		} catch (NoSuchAlgorithmException | NoSuchProviderException e1) {
+			e1.printStackTrace();
+		}
+		keyGen.initialize(224, random);
+
+		for (int i = 0; i < ACCOUNTS; i++) {
+			KeyPair ec = keyGen.generateKeyPair();
+			pubKeys[i] = ec.getPublic();
+			privKeys[i] = ec.getPrivate();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		hdsLib = HDSLib.getTestingInstance();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		HDSLib.forceReset();
+		TestAux.deleteLedger("test0");
+	}
+
+	@Test
+	public void concurrentTransfersKeepLedgerConsistent() throws Exception {
+		for (int i = 0; i < ACCOUNTS; i++) {
+			TestAux.registerHelper(pubKeys[i], privKeys[i], hdsLib);
+		}
+
+		// Every account is driven by exactly one thread, so each chain is extended in order
+		// while transfers towards the neighbours hit the ledger at the same time
+		ExecutorService pool = Executors.newFixedThreadPool(ACCOUNTS);
+		CyclicBarrier start = new CyclicBarrier(ACCOUNTS);
+		CyclicBarrier drain = new CyclicBarrier(ACCOUNTS);
+		List<Future<Void>> workers = new ArrayList<>();
+		for (int i = 0; i < ACCOUNTS; i++) {
+			final int me = i;
+			workers.add(pool.submit(() -> {
+				start.await();
+				try {
+					for (int round = 0; round < ROUNDS; round++) {
+						int dest = (me + 1 + round % (ACCOUNTS - 1)) % ACCOUNTS;
+						TestAux.sendAmountHelper(pubKeys[me], pubKeys[dest], 1, headHash(me), privKeys[me], hdsLib);
+						receivePending(me);
+					}
+				} finally {
+					// A failing worker still arrives, so the others are not left parked on the barrier
+					drain.await();
+				}
+				receivePending(me);
+				return null;
+			}));
+		}
+		for (Future<Void> worker : workers) {
+			worker.get(2, TimeUnit.MINUTES);
+		}
+		pool.shutdown();
+
+		int total = 0;
+		for (int i = 0; i < ACCOUNTS; i++) {
+			String keyHash = TestAux.hashKey(pubKeys[i]);
+			Account account = hdsLib.getAccount(keyHash);
+			total += account.getAmount();
+
+			List<Transaction> chain = hdsLib.getAccountTransactions(keyHash);
+			chain.sort(Comparator.comparingInt(Transaction::getSequence));
+			int balance = 100;
+			String previous = null;
+			for (int seq = 0; seq < chain.size(); seq++) {
+				Transaction t = chain.get(seq);
+				assertEquals(seq, t.getSequence());
+				if (previous != null) {
+					assertEquals(previous, t.getPreviousTransaction());
+				}
+				assertEquals(seq == chain.size() - 1, t.isLast());
+				balance += t.isReceiving() ? t.getAmount() : -t.getAmount();
+				previous = t.getTransactionHash();
+			}
+			assertEquals(2 * ROUNDS, chain.size());
+			assertEquals(previous, hdsLib.getChainHead(keyHash).getTransactionHash());
+			assertEquals(balance, account.getAmount());
+			assertEquals(0, hdsLib.checkAccount(keyHash).getPendingTransactions().size());
+		}
+		assertEquals(100 * ACCOUNTS, total);
+	}
+
+	private String headHash(int account) {
+		String keyHash = TestAux.hashKey(pubKeys[account]);
+		return hdsLib.getChainHead(keyHash) == null ? "000000" : hdsLib.getChainHead(keyHash).getTransactionHash();
+	}
+
+	private void receivePending(int account) throws Exception {
+		String keyHash = TestAux.hashKey(pubKeys[account]);
+		for (Transaction t : hdsLib.checkAccount(keyHash).getPendingTransactions()) {
+			TestAux.receiveAmountHelper(t.getId(), t.getSig(), privKeys[account], headHash(account), hdsLib);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+import client.domain.Server;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import server.Application;
+import server.HDSCrypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/*
+ * A replica for the client tests, on a local port. Answers the routes it is given with JSON signed over the
+ * request's timestamp, the way Application does, and keeps every request it got.
+ */
+public class FakeReplica {
+	public interface Route {
+		/* The message to send back with status, throwing answers 400 with the exception's message */
+		Object answer(Request request) throws Exception;
+	}
+
+	public static class Request {
+		public final String method;
+		public final String path;
+		public final Map<String, String> headers;
+		public final Map<String, String> form;
+		public final int remotePort;
+
+		Request(String method, String path, Map<String, String> headers, Map<String, String> form, int remotePort) {
+			this.method = method;
+			this.path = path;
+			this.headers = headers;
+			this.form = form;
+			this.remotePort = remotePort;
+		}
+	}
+
+	private final KeyPair keys = HDSCrypto.generateKeypairEC();
+	private final Map<String, Route> routes = new LinkedHashMap<>();
+	private final Map<String, Integer> statuses = new HashMap<>();
+	private final List<Request> requests = new CopyOnWriteArrayList<>();
+	private final ExecutorService threads = Executors.newCachedThreadPool();
+	private final HttpServer http;
+	private volatile long delayMillis;
+
+	public FakeReplica() throws IOException {
+		http = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		http.createContext("/", this::handle);
+		http.setExecutor(threads);
+		http.start();
+	}
+
+	/* Answers paths matching pathRegex with status and what route returns */
+	public synchronized FakeReplica on(String pathRegex, int status, Route route) {
+		routes.put(pathRegex, route);
+		statuses.put(pathRegex, status);
+		return this;
+	}
+
+	/* Holds every answer back this long, longer than the client waits makes the replica look dead */
+	public void setDelayMillis(long delayMillis) {
+		this.delayMillis = delayMillis;
+	}
+
+	public Server server() {
+		return new Server("fake" + http.getAddress().getPort(), "http://127.0.0.1:" + http.getAddress().getPort(), keys.getPublic());
+	}
+
+	public List<Request> getRequests() {
+		return new ArrayList<>(requests);
+	}
+
+	public void stop() {
+		http.stop(0);
+		threads.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			Map<String, String> headers = new HashMap<>();
+			for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+				headers.put(header.getKey().toLowerCase(), header.getValue().get(0));
+			}
+			Request request = new Request(exchange.getRequestMethod(), exchange.getRequestURI().getRawPath(), headers,
+					parseForm(readAll(exchange.getRequestBody())), exchange.getRemoteAddress().getPort());
+			requests.add(request);
+
+			String path = null;
+			synchronized (this) {
+				for (String pathRegex : routes.keySet()) {
+					if (request.path.matches(pathRegex)) {
+						path = pathRegex;
+						break;
+					}
+				}
+			}
+			int status = 404;
+			Object message = Collections.singletonMap("message", "No route for " + request.path);
+			if (path != null) {
+				try {
+					message = routes.get(path).answer(request);
+					status = statuses.get(path);
+				} catch (Exception e) {
+					status = 400;
+					message = Collections.singletonMap("message", e.getMessage());
+				}
+			}
+			if (delayMillis > 0) {
+				Thread.sleep(delayMillis);
+			}
+			byte[] body = Application.signedJson(message, sign(request.form.get("timestamp")));
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(status, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private String sign(String timestamp) throws Exception {
+		Signature s = HDSCrypto.createSignature(keys.getPrivate());
+		s.update((timestamp == null ? "" : timestamp).getBytes());
+		return Base64.getEncoder().encodeToString(s.sign());
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			bytes.write(buffer, 0, read);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Map<String, String> parseForm(byte[] body) throws IOException {
+		Map<String, String> form = new HashMap<>();
+		String encoded = new String(body, StandardCharsets.UTF_8);
+		if (encoded.isEmpty()) {
+			return form;
+		}
+		for (String pair : encoded.split("&")) {
+			int at = pair.indexOf('=');
+			String name = URLDecoder.decode(at < 0 ? pair : pair.substring(0, at), "UTF-8");
+			form.put(name, at < 0 ? "" : URLDecoder.decode(pair.substring(at + 1), "UTF-8"));
+		}
+		return form;
+	}
+}
@@ -0,0 +1,81 @@
+import org.junit.Test;
+import server.FaultInjector;
+import server.exceptions.InjectedFaultException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FaultInjectorTest {
+	private static final int SAMPLES = 20000;
+
+	@Test
+	public void fixedDelayAppliesToEveryRoute() {
+		FaultInjector faults = FaultInjector.fixedDelay(2);
+		for (String route : new String[]{"register", "audit", "error"}) {
+			assertEquals(2000, faults.sampleDelay(route));
+		}
+		assertEquals(0, FaultInjector.none().sampleDelay("audit"));
+	}
+
+	@Test
+	public void followsPercentiles() {
+		FaultInjector faults = FaultInjector.parse("audit:p50=20,p90=100,p99=500;*:p0=5");
+		assertEquals(20, faults.delayAt("audit", 50));
+		assertEquals(100, faults.delayAt("audit", 90));
+		assertEquals(500, faults.delayAt("audit", 99));
+		// In between latencies are interpolated, from 0ms at p0
+		assertEquals(0, faults.delayAt("audit", 0));
+		assertEquals(10, faults.delayAt("audit", 25));
+		assertEquals(60, faults.delayAt("audit", 70));
+		assertEquals(300, faults.delayAt("audit", 94.5));
+		// and past the last one they stay flat
+		assertEquals(500, faults.delayAt("audit", 99.9));
+		assertEquals(500, faults.delayAt("audit", 100));
+		// Routes without their own settings fall back to *
+		assertEquals(5, faults.delayAt("send", 0));
+		assertEquals(5, faults.delayAt("send", 75));
+		assertEquals(0, FaultInjector.none().delayAt("audit", 99));
+	}
+
+	@Test
+	public void samplesWithinTheProfile() {
+		FaultInjector faults = FaultInjector.parse("audit:p50=20,p90=100,p99=500");
+		for (int i = 0; i < SAMPLES; i++) {
+			long delay = faults.sampleDelay("audit");
+			assertTrue(delay >= 0 && delay <= 500);
+		}
+	}
+
+	@Test
+	public void failsTheGivenFraction() {
+		FaultInjector faults = FaultInjector.parse("send:fail=0.25");
+		int failed = 0;
+		for (int i = 0; i < SAMPLES; i++) {
+			try {
+				faults.beforeRequest("send");
+			} catch (InjectedFaultException e) {
+				failed++;
+			}
+		}
+		assertEquals(0.25, failed / (double) SAMPLES, 0.02);
+		try {
+			faults.beforeRequest("check");
+		} catch (InjectedFaultException e) {
+			fail("check has no faults configured");
+		}
+	}
+
+	@Test
+	public void rejectsInvalidSpecs() {
+		String[] invalid = {"audit", "audit:p50", "audit:p150=10", "audit:p50=-1", "audit:fail=2", "audit:slow=1"};
+		for (String spec : invalid) {
+			try {
+				FaultInjector.parse(spec);
+				fail(spec);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,229 @@
+import client.HDSClient;
+import client.QuorumCall;
+import client.VerifiedSignatures;
+import client.domain.Account;
+import client.domain.Server;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import server.Application;
+import server.HDSCrypto;
+import server.HDSLib;
+import server.domain.Transaction;
+
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HDSClientTest {
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private static KeyPair keys;
+	private static KeyPair otherKeys;
+
+	private HDSLib hdsLib;
+	private FakeReplica replica;
+	private final List<FakeReplica> scripted = new ArrayList<>();
+
+	@BeforeClass
+	public static void setUpAll() {
+		System.setProperty("com.j256.ormlite.logger.type", "LOCAL");
+		System.setProperty("com.j256.ormlite.logger.level", "ERROR");
+		keys = HDSCrypto.generateKeypairEC();
+		otherKeys = HDSCrypto.generateKeypairEC();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		hdsLib = HDSLib.getTestingInstance();
+		TestAux.registerHelper(keys.getPublic(), keys.getPrivate(), hdsLib);
+		TestAux.registerHelper(otherKeys.getPublic(), otherKeys.getPrivate(), hdsLib);
+		// Audit and writeback as Application answers them, on hdsLib
+		replica = new FakeReplica()
+				.on(".*/audit", 200, this::audit)
+				.on("/hds/wb", 201, request -> {
+					hdsLib.joinLedger(request.form.get("key"), mapper.readTree(request.form.get("transactionList")));
+					return Collections.singletonMap("ack", "ack");
+				});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		replica.stop();
+		for (FakeReplica other : scripted) {
+			other.stop();
+		}
+		HDSLib.forceReset();
+		TestAux.deleteLedger("test0");
+	}
+
+	@Test
+	public void auditAsksOnlyForTheSuffix() throws Exception {
+		HDSClient client = new HDSClient(Collections.singletonList(replica.server()), keys, new VerifiedSignatures(null));
+		Transaction first = send("000000");
+		Transaction second = send(first.getTransactionHash());
+
+		List<client.domain.Transaction> audited = client.audit().get(10, TimeUnit.SECONDS);
+		assertEquals(2, audited.size());
+		assertFalse(replica.getRequests().get(0).form.containsKey("fromSequence"));
+
+		Transaction third = send(second.getTransactionHash());
+		audited = client.audit().get(10, TimeUnit.SECONDS);
+		assertEquals(3, audited.size());
+		assertEquals(third.getTransactionHash(), audited.get(2).getTransactionHash());
+
+		// Audit, writeback, then the audit that continues from the verified head
+		FakeReplica.Request suffix = replica.getRequests().get(2);
+		assertEquals("2", suffix.form.get("fromSequence"));
+		assertEquals(second.getTransactionHash(), suffix.form.get("knownHash"));
+		assertNotNull(suffix.form.get("timestamp"));
+
+		// Only the suffix is written back, the replica lines it up by sequence
+		JsonNode writeback = mapper.readTree(replica.getRequests().get(3).form.get("transactionList"));
+		assertEquals(1, writeback.get("transactions").size());
+		assertEquals(third.getId(), writeback.get("transactions").get(0).get("id").asText());
+		assertEquals(third.getTransactionHash(), hdsLib.getChainHead(TestAux.hashKey(keys.getPublic())).getTransactionHash());
+	}
+
+	@Test
+	public void auditStartsOverWhenTheReplicaLacksTheHead() throws Exception {
+		HDSClient client = new HDSClient(Collections.singletonList(replica.server()), keys, new VerifiedSignatures(null));
+		send("000000");
+		assertEquals(1, client.audit().get(10, TimeUnit.SECONDS).size());
+
+		// The replica forgets the chain the client verified and builds another one
+		HDSLib.forceReset();
+		TestAux.deleteLedger("test0");
+		hdsLib = HDSLib.getTestingInstance();
+		TestAux.registerHelper(keys.getPublic(), keys.getPrivate(), hdsLib);
+		TestAux.registerHelper(otherKeys.getPublic(), otherKeys.getPrivate(), hdsLib);
+		Transaction other = send("000000");
+		send(other.getTransactionHash());
+
+		List<client.domain.Transaction> audited = client.audit().get(10, TimeUnit.SECONDS);
+		assertEquals(2, audited.size());
+		assertEquals(other.getTransactionHash(), audited.get(0).getTransactionHash());
+	}
+
+	@Test
+	public void registerTakesTheMajorityReply() throws Exception {
+		List<Server> servers = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			servers.add(scripted().on("/hds/", 201, request -> Collections.singletonMap("keyHash", "hash")).server());
+		}
+		servers.add(scripted().on("/hds/", 400, request -> { throw new Exception("Account already exists"); }).server());
+		HDSClient client = new HDSClient(servers, keys, new VerifiedSignatures(null));
+		assertEquals(3, client.getMajority());
+
+		assertEquals("Registered successfully! Your hash: hash", client.register().get(10, TimeUnit.SECONDS));
+		FakeReplica.Request request = scripted.get(0).getRequests().get(0);
+		assertEquals("POST", request.method);
+		assertEquals(Base64.getEncoder().encodeToString(keys.getPublic().getEncoded()), request.form.get("key"));
+		Signature sig = HDSCrypto.verifySignature(keys.getPublic());
+		sig.update(request.form.get("timestamp").getBytes());
+		assertTrue(sig.verify(Base64.getDecoder().decode(request.form.get("sig"))));
+	}
+
+	@Test
+	public void forgedServerSignatureIsAnError() throws Exception {
+		List<Server> servers = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			servers.add(scripted().on("/hds/", 201, request -> Collections.singletonMap("keyHash", "hash")).server());
+		}
+		// Answers come signed by the replica, not by the key the client knows for two of them
+		servers.set(0, new Server("forged0", servers.get(0).getAddress(), otherKeys.getPublic()));
+		servers.set(1, new Server("forged1", servers.get(1).getAddress(), otherKeys.getPublic()));
+		HDSClient client = new HDSClient(servers, keys, new VerifiedSignatures(null));
+
+		assertEquals("Could not verify the server's signature", failure(client.register()).getMessage());
+	}
+
+	@Test
+	public void sendFailsWithTheErrorMostServersAgreeOn() throws Exception {
+		List<Server> servers = new ArrayList<>();
+		servers.add(scripted().on(".*/send", 201, request -> Collections.singletonMap("id", "0-hash")).server());
+		for (int i = 0; i < 3; i++) {
+			servers.add(scripted().on(".*/send", 400, request -> { throw new Exception("Not enough funds"); }).server());
+		}
+		HDSClient client = new HDSClient(servers, keys, new VerifiedSignatures(null));
+
+		assertEquals("Not enough funds", failure(client.send(TestAux.hashKey(otherKeys.getPublic()), "1000")).getMessage());
+		FakeReplica.Request request = scripted.get(0).getRequests().get(0);
+		assertEquals("1000", request.form.get("amount"));
+		assertEquals("000000", request.form.get("previousTransaction"));
+	}
+
+	@Test
+	public void checkTakesTheMostCommonAccount() throws Exception {
+		List<Server> servers = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			servers.add(scripted().on(".*/check", 200, request -> account(90)).server());
+		}
+		servers.add(scripted().on(".*/check", 200, request -> account(1000)).server());
+		HDSClient client = new HDSClient(servers, keys, new VerifiedSignatures(null));
+
+		Account account = client.check().get(10, TimeUnit.SECONDS);
+		assertEquals(90, account.getBalance());
+		assertSame(account, client.getAccount());
+	}
+
+	@Test
+	public void receiveOfUnknownTransactionAsksNoServer() throws Exception {
+		HDSClient client = new HDSClient(Collections.singletonList(replica.server()), keys, new VerifiedSignatures(null));
+		assertEquals("No such transaction ID", failure(client.receive("0-unknown")).getMessage());
+		assertTrue(replica.getRequests().isEmpty());
+	}
+
+	private FakeReplica scripted() throws Exception {
+		FakeReplica other = new FakeReplica();
+		scripted.add(other);
+		return other;
+	}
+
+	private static ObjectNode account(int amount) {
+		ObjectNode json = mapper.createObjectNode();
+		json.put("amount", amount);
+		json.putArray("pendingTransactions");
+		return json;
+	}
+
+	private static Throwable failure(CompletableFuture<?> future) throws Exception {
+		try {
+			future.get(10, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof QuorumCall.ServerError);
+			return e.getCause();
+		}
+		fail("Expected the quorum to fail");
+		return null;
+	}
+
+	private Transaction send(String previous) throws Exception {
+		return TestAux.sendAmountHelper(keys.getPublic(), otherKeys.getPublic(), 10, previous, keys.getPrivate(), hdsLib);
+	}
+
+	private Object audit(FakeReplica.Request request) throws Exception {
+		String key = Application.urlDecode(request.path.split("/")[2]);
+		int fromSequence = request.form.containsKey("fromSequence") ? Integer.parseInt(request.form.get("fromSequence")) : 0;
+		String knownHash = request.form.get("knownHash");
+		if (knownHash != null && fromSequence > 0 && !hdsLib.hasTransactionAt(key, fromSequence - 1, knownHash)) {
+			fromSequence = 0;
+		}
+		ObjectNode json = mapper.createObjectNode();
+		json.put("fromSequence", fromSequence);
+		json.set("transactions", mapper.valueToTree(hdsLib.getAccountTransactions(key, fromSequence)));
+		return json;
+	}
+}
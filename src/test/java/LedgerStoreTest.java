@@ -0,0 +1,272 @@
+import org.junit.After;
+import org.junit.Test;
+import server.HDSCrypto;
+import server.LedgerStore;
+import server.LogLedgerStore;
+import server.domain.Account;
+import server.domain.ChainHead;
+import server.domain.Transaction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class LedgerStoreTest {
+	private static final Path LOG = Paths.get("./db/ledger0-log");
+	private static final Path WAL = Paths.get("./db/ledger0.wal");
+	private static final String TIMESTAMP = "2018-05-01 12:00:00.000";
+
+	private LedgerStore store;
+
+	@After
+	public void tearDown() throws Exception {
+		if (store != null) {
+			store.close();
+		}
+		System.clearProperty("hds.log.segmentBytes");
+		TestAux.deleteLedger("ledger0");
+	}
+
+	@Test
+	public void memoryStore() throws Exception {
+		store = LedgerStore.open("memory", "ledger");
+		transfer();
+		checkTransferred();
+	}
+
+	@Test
+	public void h2StoreKeepsLedger() throws Exception {
+		store = LedgerStore.open("h2", "ledger");
+		transfer();
+		reopen("h2");
+		checkTransferred();
+	}
+
+	@Test
+	public void h2StoreReplaysWriteAheadLog() throws Exception {
+		store = LedgerStore.open("h2", "ledger");
+		transfer();
+		byte[] operations = Files.readAllBytes(WAL);
+		store.close();
+		assertEquals(0, Files.size(WAL));
+
+		// The database already has everything in the log
+		Files.write(WAL, operations);
+		store = LedgerStore.open("h2", "ledger");
+		checkTransferred();
+		store.close();
+
+		// The database lost everything in the log
+		Files.write(WAL, operations);
+		Files.delete(Paths.get("./db/ledger0.mv.db"));
+		store = LedgerStore.open("h2", "ledger");
+		checkTransferred();
+	}
+
+	@Test
+	public void h2StoreSkipsCancelledOperations() throws Exception {
+		store = LedgerStore.open("h2", "ledger");
+		transfer();
+		// Closing checkpoints the database and empties the log
+		reopen("h2");
+		assertEquals(0, Files.size(WAL));
+
+		try {
+			store.createAccount(new Account("a", new byte[]{9}, 500));
+			fail("stored an account twice");
+		} catch (SQLException e) {
+			// expected, and cancelled in the log
+		}
+		byte[] operations = Files.readAllBytes(WAL);
+		assertTrue(operations.length > 0);
+		store.close();
+
+		// On a database without a the refused account would now be stored, unless the cancellation is honoured
+		Files.write(WAL, operations);
+		Files.delete(Paths.get("./db/ledger0.mv.db"));
+		store = LedgerStore.open("h2", "ledger");
+		assertNull(store.findAccount("a"));
+	}
+
+	@Test
+	public void logStoreKeepsLedger() throws Exception {
+		store = LedgerStore.open("log", "ledger");
+		transfer();
+		reopen("log");
+		checkTransferred();
+	}
+
+	@Test
+	public void logStoreRollsOverSegments() throws Exception {
+		System.setProperty("hds.log.segmentBytes", "128");
+		store = LedgerStore.open("log", "ledger");
+		transfer();
+		assertTrue(segments().size() > 1);
+		reopen("log");
+		checkTransferred();
+	}
+
+	@Test
+	public void logStoreDropsTornRecord() throws Exception {
+		store = LedgerStore.open("log", "ledger");
+		transfer();
+		store.close();
+		// Part of a record that was being written when the server crashed, past the records already there
+		Path segment = segments().get(0);
+		long size = Files.size(segment);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[]{0, 0, 1, 0, 1, 2, 3, 4, 5}), size - 4096);
+		}
+
+		store = LedgerStore.open("log", "ledger");
+		checkTransferred();
+		store.createAccount(new Account("c", new byte[]{3}, 100));
+		reopen("log");
+		assertNotNull(store.findAccount("c"));
+		assertEquals(size, Files.size(segment));
+	}
+
+	@Test
+	public void logStoreRestoresCheckpoint() throws Exception {
+		KeyPair keys = HDSCrypto.generateKeypairEC();
+		store = new LogLedgerStore("ledger", keys);
+		transfer();
+		((LogLedgerStore) store).checkpoint();
+		assertEquals(1, segments(LOG.resolve("archive")).size());
+		assertTrue(Files.exists(LOG.resolve("00000001.checkpoint")));
+		store.createAccount(new Account("c", new byte[]{3}, 100));
+
+		store.close();
+		store = new LogLedgerStore("ledger", keys);
+		assertNotNull(store.findAccount("c"));
+		// The older transactions come back from the archive in the background, the lookups wait for them
+		checkTransferred();
+		assertEquals(1, segments(LOG.resolve("archive")).size());
+	}
+
+	@Test
+	public void logStoreIgnoresTamperedCheckpoint() throws Exception {
+		KeyPair keys = HDSCrypto.generateKeypairEC();
+		store = new LogLedgerStore("ledger", keys);
+		transfer();
+		((LogLedgerStore) store).checkpoint();
+		store.close();
+		Path checkpoint = LOG.resolve("00000001.checkpoint");
+		byte[] bytes = Files.readAllBytes(checkpoint);
+		bytes[bytes.length / 2] ^= 1;
+		Files.write(checkpoint, bytes);
+
+		// Falls back to replaying the whole log, archive included
+		store = new LogLedgerStore("ledger", keys);
+		checkTransferred();
+	}
+
+	private List<Path> segments() throws IOException {
+		return segments(LOG);
+	}
+
+	private List<Path> segments(Path dir) throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.filter(file -> file.toString().endsWith(".segment")).sorted().collect(Collectors.toList());
+		}
+	}
+
+	@Test
+	public void refusesWhatBreaksTheLedger() throws Exception {
+		for (String type : LedgerStore.TYPES) {
+			store = LedgerStore.open(type, "ledger");
+			transfer();
+			try {
+				store.createAccount(new Account("a", new byte[]{1}, 100));
+				fail(type + " stored an account twice");
+			} catch (SQLException e) {
+				// expected
+			}
+			try {
+				store.appendSend(send("0-b", null, 1), null, new Account("b", null, 70));
+				fail(type + " stored a transaction twice");
+			} catch (SQLException e) {
+				// expected
+			}
+			checkTransferred();
+			tearDown();
+			store = null;
+		}
+	}
+
+	private void reopen(String type) throws SQLException {
+		store.close();
+		store = LedgerStore.open(type, "ledger");
+	}
+
+	/* b sends 30 to a, a receives it and sends 10 back, still pending */
+	private void transfer() throws SQLException {
+		Account a = new Account("a", new byte[]{1}, 100);
+		Account b = new Account("b", new byte[]{2}, 100);
+		store.createAccount(a);
+		store.createAccount(b);
+
+		Transaction sent = new Transaction("0-b", b, a, 30, TIMESTAMP, null, new byte[]{1, 1}, HDSCrypto.hashToString(new byte[]{1, 1}));
+		sent.setLast(true);
+		b.addAmount(-30);
+		store.appendSend(sent, null, b);
+		assertEquals(1, store.findPendingIncoming("a").size());
+
+		Transaction received = Transaction.ReceiveTransaction("0-a", store.findTransaction("0-b"), TIMESTAMP, "000000", new byte[]{2, 2}, HDSCrypto.hashToString(new byte[]{2, 2}));
+		received.setLast(true);
+		a.addAmount(30);
+		store.appendReceive(received, store.findTransaction("0-b"), null, a);
+
+		Transaction next = send("1-a", received.getTransactionHash(), 3);
+		next.setLast(true);
+		a.addAmount(-10);
+		store.appendSend(next, new ChainHead(received), a);
+	}
+
+	private Transaction send(String id, String previous, int sig) {
+		byte[] signature = {(byte) sig, 3};
+		return new Transaction(id, new Account("a", null, 0), new Account("b", null, 0), 10, TIMESTAMP, previous, signature, HDSCrypto.hashToString(signature));
+	}
+
+	private void checkTransferred() throws SQLException {
+		assertEquals(120, store.findAccount("a").getAmount());
+		assertArrayEquals(new byte[]{1}, store.findAccount("a").getEncodedKey());
+		assertEquals(70, store.findAccount("b").getAmount());
+
+		Transaction sent = store.findTransaction("0-b");
+		assertFalse(sent.isPending());
+		assertTrue(sent.isLast());
+		assertTrue(store.isReceived(sent.getTransactionHash()));
+		assertEquals(1, store.findPendingIncoming("b").size());
+		assertEquals(0, store.findPendingIncoming("a").size());
+
+		List<Transaction> chain = store.findChain("a", 0);
+		assertEquals(2, chain.size());
+		assertEquals("0-a", chain.get(0).getId());
+		assertEquals("0-b", chain.get(0).getSenderTransactionId());
+		assertFalse(chain.get(0).isLast());
+		assertEquals("1-a", chain.get(1).getId());
+		assertTrue(chain.get(1).isLast());
+		assertEquals(1, store.findChain("a", 1).size());
+		assertEquals("1-a", store.findTransactionByHash(chain.get(1).getTransactionHash()).getId());
+		assertTrue(store.hasTransactionAt("a", 0, chain.get(0).getTransactionHash()));
+		assertFalse(store.hasTransactionAt("a", 1, chain.get(0).getTransactionHash()));
+		assertEquals(2, store.findChainHeads().size());
+
+		try (LedgerStore.Cursor<Transaction> page = store.iterateChain("a", 0, 1)) {
+			assertEquals("0-a", page.next().getId());
+			assertFalse(page.hasNext());
+		}
+	}
+}
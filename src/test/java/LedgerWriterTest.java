@@ -0,0 +1,127 @@
+import org.junit.After;
+import org.junit.Test;
+import server.LedgerWriter;
+
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class LedgerWriterTest {
+	private LedgerWriter writer;
+	private final ExecutorService threads = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		threads.shutdownNow();
+		if (writer != null) {
+			writer.shutdown();
+		}
+	}
+
+	@Test
+	public void accountStaysOnItsShard() throws Exception {
+		writer = new LedgerWriter(4, 16);
+		String thread = threadOf("a");
+		assertTrue(thread.startsWith("hds-ledger-writer-"));
+		for (int i = 0; i < 10; i++) {
+			assertEquals(thread, threadOf("a"));
+		}
+		assertTrue(writer.submit("a", () -> writer.owns("a") && writer.isWriterThread()));
+		assertFalse(writer.isWriterThread());
+
+		Set<String> used = new HashSet<>();
+		for (int i = 0; i < 100; i++) {
+			used.add(threadOf("account" + i));
+		}
+		assertEquals(4, used.size());
+	}
+
+	@Test(timeout = 10000)
+	public void commandOfTheSameShardRunsInline() throws Exception {
+		writer = new LedgerWriter(2, 1);
+		// Queued instead, it would wait behind the command waiting for it
+		String inner = writer.submit("a", () -> writer.submit("a", () -> Thread.currentThread().getName()));
+		assertEquals(threadOf("a"), inner);
+	}
+
+	@Test(timeout = 10000)
+	public void otherShardsAreRefused() throws Exception {
+		writer = new LedgerWriter(2, 16);
+		String other = "b";
+		for (int i = 0; threadOf(other).equals(threadOf("a")); i++) {
+			other = "b" + i;
+		}
+		String otherKey = other;
+		try {
+			writer.submit("a", () -> writer.submit(otherKey, () -> null));
+			fail("Submitted to another shard from a writer thread");
+		} catch (IllegalStateException e) {
+			// expected, the shards could wait on each other
+		}
+		// The shard keeps working afterwards
+		assertEquals(threadOf("a"), threadOf("a"));
+	}
+
+	@Test
+	public void failuresComeBackToTheCaller() throws Exception {
+		writer = new LedgerWriter(1, 16);
+		try {
+			writer.submit("a", () -> {
+				throw new SQLException("Write failed");
+			});
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof SQLException);
+		}
+		try {
+			writer.submit("a", () -> {
+				throw new IllegalArgumentException("Bad amount");
+			});
+			fail();
+		} catch (IllegalArgumentException e) {
+			// unchecked exceptions are thrown as they are
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void shutdownAppliesQueuedCommandsThenRefuses() throws Exception {
+		writer = new LedgerWriter(1, 1);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Future<Integer> running = threads.submit(() -> writer.submit("a", () -> {
+			started.countDown();
+			release.await();
+			return 1;
+		}));
+		started.await();
+		Future<Integer> queued = threads.submit(() -> writer.submit("a", () -> 2));
+		while (writer.getQueued() < 1) {
+			Thread.sleep(5);
+		}
+
+		// The queue is full, so the shard's stop has to wait for room
+		Future<?> stopping = threads.submit(writer::shutdown);
+		Thread.sleep(100);
+		assertFalse(stopping.isDone());
+
+		release.countDown();
+		assertEquals(Integer.valueOf(1), running.get(5, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(2), queued.get(5, TimeUnit.SECONDS));
+		stopping.get(5, TimeUnit.SECONDS);
+		try {
+			writer.submit("a", () -> 3);
+			fail("Submitted after shutdown");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// Shutting down twice is fine
+		writer.shutdown();
+	}
+
+	private String threadOf(String keyHash) throws ExecutionException {
+		return writer.submit(keyHash, () -> Thread.currentThread().getName());
+	}
+}
@@ -0,0 +1,219 @@
+import client.QuorumCall;
+import client.domain.Server;
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.JsonNode;
+import com.mashape.unirest.http.Unirest;
+import org.junit.Test;
+import server.HDSCrypto;
+
+import java.security.PublicKey;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class QuorumCallTest {
+	private static final PublicKey KEY = HDSCrypto.generateKeypairEC().getPublic();
+
+	@Test
+	public void matchingWaitsForMajorityOfTheSameReply() throws Exception {
+		List<Server> servers = servers(4);
+		Map<Server, CompletableFuture<String>> replies = pending(servers);
+		CompletableFuture<QuorumCall<String>> call = QuorumCall.matching(servers, 3, replies::get);
+
+		replies.get(servers.get(0)).complete("ok");
+		replies.get(servers.get(1)).complete("forged");
+		replies.get(servers.get(2)).complete("ok");
+		assertFalse(call.isDone());
+
+		replies.get(servers.get(3)).complete("ok");
+		QuorumCall<String> result = call.get(1, TimeUnit.SECONDS);
+		assertEquals(Integer.valueOf(3), result.getReplyCounts().get("ok"));
+		assertEquals(Integer.valueOf(1), result.getReplyCounts().get("forged"));
+		assertEquals(4, result.getReplies().size());
+		assertTrue(result.getErrors().isEmpty());
+	}
+
+	@Test
+	public void laterRepliesAreDropped() throws Exception {
+		List<Server> servers = servers(4);
+		Map<Server, CompletableFuture<String>> replies = pending(servers);
+		CompletableFuture<QuorumCall<String>> call = QuorumCall.matching(servers, 3, replies::get);
+		for (int i = 0; i < 3; i++) {
+			replies.get(servers.get(i)).complete("ok");
+		}
+		QuorumCall<String> result = call.get(1, TimeUnit.SECONDS);
+
+		replies.get(servers.get(3)).complete("late");
+		assertEquals(3, result.getReplies().size());
+		assertNull(result.getReplyCounts().get("late"));
+	}
+
+	@Test
+	public void errorsAreCountedByMessage() throws Exception {
+		List<Server> servers = servers(4);
+		Map<Server, CompletableFuture<String>> replies = pending(servers);
+		CompletableFuture<QuorumCall<String>> call = QuorumCall.matching(servers, 3, replies::get);
+
+		replies.get(servers.get(0)).completeExceptionally(new QuorumCall.ServerError("Not enough funds"));
+		// However deep the error was wrapped, the message is what counts
+		replies.get(servers.get(1)).completeExceptionally(new CompletionException(new QuorumCall.ServerError("Not enough funds")));
+		replies.get(servers.get(2)).complete("ok");
+		assertFalse(call.isDone());
+
+		replies.get(servers.get(3)).completeExceptionally(new QuorumCall.ServerError("Not enough funds"));
+		QuorumCall<String> result = call.get(1, TimeUnit.SECONDS);
+		assertEquals(Collections.singletonMap("Not enough funds", 3), result.getErrors());
+		assertEquals(Collections.singletonList("ok"), result.getReplies());
+	}
+
+	@Test
+	public void requestThatThrowsIsAnError() throws Exception {
+		List<Server> servers = servers(1);
+		QuorumCall<String> result = QuorumCall.<String>matching(servers, 1, server -> {
+			throw new IllegalStateException("Couldn't start the connection pool");
+		}).get(1, TimeUnit.SECONDS);
+		assertEquals(Collections.singletonMap("Couldn't start the connection pool", 1), result.getErrors());
+	}
+
+	@Test
+	public void matchingEndsWhenEveryServerAnswered() throws Exception {
+		List<Server> servers = servers(4);
+		Map<Server, CompletableFuture<String>> replies = pending(servers);
+		CompletableFuture<QuorumCall<String>> call = QuorumCall.matching(servers, 3, replies::get);
+		replies.get(servers.get(0)).complete("a");
+		replies.get(servers.get(1)).complete("b");
+		replies.get(servers.get(2)).completeExceptionally(new QuorumCall.ServerError("c"));
+		assertFalse(call.isDone());
+
+		replies.get(servers.get(3)).complete("d");
+		QuorumCall<String> result = call.get(1, TimeUnit.SECONDS);
+		assertEquals(3, result.getReplies().size());
+		assertEquals(1, result.getErrors().size());
+	}
+
+	@Test
+	public void responsesTakeAnyMajority() throws Exception {
+		List<Server> servers = servers(4);
+		Map<Server, CompletableFuture<String>> replies = pending(servers);
+		CompletableFuture<QuorumCall<String>> call = QuorumCall.responses(servers, 3, replies::get);
+		replies.get(servers.get(0)).complete("a");
+		replies.get(servers.get(1)).completeExceptionally(new QuorumCall.ServerError("b"));
+		assertFalse(call.isDone());
+
+		replies.get(servers.get(2)).complete("c");
+		QuorumCall<String> result = call.get(1, TimeUnit.SECONDS);
+		assertEquals(Arrays.asList("a", "c"), result.getReplies());
+		assertEquals(Collections.singletonMap("b", 1), result.getErrors());
+	}
+
+	@Test
+	public void timesOutWhenTooFewServersAnswer() throws Exception {
+		List<Server> servers = servers(4);
+		Map<Server, CompletableFuture<String>> replies = pending(servers);
+		CompletableFuture<QuorumCall<String>> call = QuorumCall.matching(servers, 3, 200, replies::get);
+		replies.get(servers.get(0)).complete("ok");
+		replies.get(servers.get(1)).complete("ok");
+
+		QuorumCall<String> result = call.get(5, TimeUnit.SECONDS);
+		assertEquals(Integer.valueOf(2), result.getReplyCounts().get("ok"));
+		// The two that never answered are counted under one message
+		assertEquals(Collections.singletonMap("Timed out after 200ms", 2), result.getErrors());
+
+		replies.get(servers.get(2)).complete("ok");
+		assertEquals(2, result.getReplies().size());
+	}
+
+	@Test
+	public void quorumInTimeIsNotTimedOut() throws Exception {
+		List<Server> servers = servers(4);
+		Map<Server, CompletableFuture<String>> replies = pending(servers);
+		CompletableFuture<QuorumCall<String>> call = QuorumCall.responses(servers, 3, 200, replies::get);
+		for (int i = 0; i < 3; i++) {
+			replies.get(servers.get(i)).complete("ok");
+		}
+		QuorumCall<String> result = call.get(1, TimeUnit.SECONDS);
+
+		Thread.sleep(400);
+		assertTrue(result.getErrors().isEmpty());
+	}
+
+	@Test
+	public void noServersIsDoneAtOnce() throws Exception {
+		QuorumCall<String> result = QuorumCall.<String>matching(Collections.emptyList(), 1, server -> new CompletableFuture<>())
+				.get(1, TimeUnit.SECONDS);
+		assertTrue(result.getReplies().isEmpty());
+		assertTrue(result.getErrors().isEmpty());
+	}
+
+	@Test
+	public void postsWithTheRequestAndDefaultHeaders() throws Exception {
+		FakeReplica replica = new FakeReplica().on("/hds/ping", 200, request -> Collections.singletonMap("ok", true));
+		Server server = replica.server();
+		Unirest.setDefaultHeader("x-hds-client", "test");
+		Unirest.setDefaultHeader("accept", "text/plain");
+		try {
+			HttpResponse<JsonNode> response = QuorumCall.post(server, Unirest.post(server.getAddress() + "/hds/ping")
+					.header("Accept", "application/json")
+					.field("timestamp", "now")).get(5, TimeUnit.SECONDS);
+			assertEquals(200, response.getStatus());
+			assertTrue(response.getBody().getObject().getBoolean("ok"));
+
+			FakeReplica.Request request = replica.getRequests().get(0);
+			assertEquals("POST", request.method);
+			assertEquals("now", request.form.get("timestamp"));
+			assertEquals("test", request.headers.get("x-hds-client"));
+			// The request's own header wins over the default one, whatever its case
+			assertEquals("application/json", request.headers.get("accept"));
+		} finally {
+			Unirest.clearDefaultHeaders();
+			server.close();
+			replica.stop();
+		}
+	}
+
+	@Test
+	public void everyReplicaKeepsItsOwnConnections() throws Exception {
+		FakeReplica replica = new FakeReplica().on("/hds/ping", 200, request -> Collections.singletonMap("ok", true));
+		Server server = replica.server();
+		Server other = replica.server();
+		try {
+			for (int i = 0; i < 5; i++) {
+				QuorumCall.post(server, Unirest.post(server.getAddress() + "/hds/ping").field("timestamp", "t" + i)).get(5, TimeUnit.SECONDS);
+			}
+			QuorumCall.post(other, Unirest.post(other.getAddress() + "/hds/ping").field("timestamp", "other")).get(5, TimeUnit.SECONDS);
+
+			// One after the other, the requests to a replica all go over the same kept-alive connection
+			List<FakeReplica.Request> requests = replica.getRequests();
+			Set<Integer> ports = new HashSet<>();
+			for (int i = 0; i < 5; i++) {
+				ports.add(requests.get(i).remotePort);
+			}
+			assertEquals(1, ports.size());
+			// while another Server has a pool of its own
+			assertFalse(ports.contains(requests.get(5).remotePort));
+		} finally {
+			server.close();
+			other.close();
+			replica.stop();
+		}
+	}
+
+	private static List<Server> servers(int count) {
+		List<Server> servers = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			servers.add(new Server("server" + i, "http://127.0.0.1:" + (8080 + i), KEY));
+		}
+		return servers;
+	}
+
+	private static Map<Server, CompletableFuture<String>> pending(List<Server> servers) {
+		Map<Server, CompletableFuture<String>> replies = new HashMap<>();
+		for (Server server : servers) {
+			replies.put(server, new CompletableFuture<>());
+		}
+		return replies;
+	}
+}
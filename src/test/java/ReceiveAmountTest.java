@@ -11,8 +11,6 @@ import server.exceptions.TimestampNotFreshException;
 import server.exceptions.TransactionAlreadyReceivedException;
 import server.exceptions.TransactionNotFoundException;
 
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.security.*;
 import java.util.Calendar;
 import java.util.Date;
@@ -59,8 +57,7 @@ public class ReceiveAmountTest {
 	@After
 	public void tearDown() throws Exception {
 		HDSLib.forceReset();
-		Files.deleteIfExists(Paths.get("./db/test0.mv.db"));
-		Files.deleteIfExists(Paths.get("./db/test0.trace.db"));
+		TestAux.deleteLedger("test0");
 	}
 
 	@Test
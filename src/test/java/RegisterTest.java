@@ -10,8 +10,6 @@ import server.exceptions.KeyAlreadyRegistered;
 import server.exceptions.NullArgumentException;
 import server.exceptions.TimestampNotFreshException;
 
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.security.*;
 import java.util.Calendar;
 import java.util.Date;
@@ -58,8 +56,7 @@ public class RegisterTest {
 	@After
 	public void tearDown() throws Exception {
 		HDSLib.forceReset();
-		Files.deleteIfExists(Paths.get("./db/test0.mv.db"));
-		Files.deleteIfExists(Paths.get("./db/test0.trace.db"));
+		TestAux.deleteLedger("test0");
 	}
 
 	@Test
@@ -74,10 +71,10 @@ public class RegisterTest {
 		assertNotNull(a1);
 		assertNotNull(a2);
 
-		assertNotNull(a1.getKey());
-		assertNotNull(a2.getKey());
-		assertEquals(a1.getKey(), pubKey1);
-		assertEquals(a2.getKey(), pubKey2);
+		assertNotNull(a1.getEncodedKey());
+		assertNotNull(a2.getEncodedKey());
+		assertEquals(HDSCrypto.decodePublicKey(a1.getEncodedKey()), pubKey1);
+		assertEquals(HDSCrypto.decodePublicKey(a2.getEncodedKey()), pubKey2);
 		assertNotEquals(pubKey1, pubKey2);
 
 		assertEquals(a1.getKeyHash(), keyHash1);
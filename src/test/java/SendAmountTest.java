@@ -9,8 +9,6 @@ import server.domain.Transaction;
 import server.exceptions.*;
 
 import java.math.BigInteger;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.security.*;
 import java.util.Calendar;
 import java.util.Date;
@@ -63,8 +61,7 @@ public class SendAmountTest {
 	@After
 	public void tearDown() throws Exception {
 		HDSLib.forceReset();
-		Files.deleteIfExists(Paths.get("./db/test0.mv.db"));
-		Files.deleteIfExists(Paths.get("./db/test0.trace.db"));
+		TestAux.deleteLedger("test0");
 	}
 
 	@Test
@@ -92,6 +89,29 @@ public class SendAmountTest {
 		assertNotNull(newTransaction);
 	}
 
+	@Test
+	public void sendAmountChainHeadRebuilt() throws Exception{
+		// Restarting only keeps the ledger on a store that persists it
+		HDSLib.forceReset();
+		hdsLib = HDSLib.getTestingInstance("h2");
+		TestAux.registerHelper(pubKey1, privKey1, hdsLib);
+		TestAux.registerHelper(pubKey2, privKey2, hdsLib);
+		String pubHash1 = TestAux.hashKey(pubKey1);
+
+		Transaction t1 = TestAux.sendAmountHelper(pubKey1, pubKey2, 30, "000000", privKey1, hdsLib);
+		assertEquals(t1.getTransactionHash(), hdsLib.getChainHead(pubHash1).getTransactionHash());
+
+		HDSLib.forceReset();
+		hdsLib = HDSLib.getTestingInstance("h2");
+		assertEquals(t1.getTransactionHash(), hdsLib.getChainHead(pubHash1).getTransactionHash());
+
+		Transaction t2 = TestAux.sendAmountHelper(pubKey1, pubKey2, 20, t1.getTransactionHash(), privKey1, hdsLib);
+		assertEquals("1-" + pubHash1, t2.getId());
+		assertEquals(1, t2.getSequence());
+		assertEquals(t2.getTransactionHash(), hdsLib.getChainHead(pubHash1).getTransactionHash());
+		assertFalse(hdsLib.getTransaction(t1.getId()).isLast());
+	}
+
 	@Test(expected = AccountNotFoundException.class)
 	public void sendAmountSourceAccountNotFound() throws Exception{
 		TestAux.registerHelper(pubKey1, privKey1, hdsLib);
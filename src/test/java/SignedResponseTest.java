@@ -0,0 +1,69 @@
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+import server.Application;
+import server.HDSCrypto;
+import server.domain.Account;
+import server.domain.AccountState;
+import server.domain.Transaction;
+
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SignedResponseTest {
+	private static final String SERVER_SIG = "MD0CHQCvXW3f9yqXlWGcAB/+rMnZrX0Vq0kwJ4nYt8e0Ahw2dMJk5yxVB0sG3vbXcJbYZ8QxW0o1KjYcFQ==";
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	public void matchesTreeSerialization() throws Exception {
+		Account from = account(HDSCrypto.generateKeypairEC().getPublic());
+		Account to = account(HDSCrypto.generateKeypairEC().getPublic());
+		List<Transaction> pending = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			byte[] sig = {1, 2, (byte) i};
+			pending.add(new Transaction(i + "-" + from.getKeyHash(), from, to, 10 + i, "2018.05.10.12.00.0" + i, "000000", sig, HDSCrypto.hashToString(sig)));
+		}
+		Object[] messages = {new AccountState(to.getKeyHash(), 100, pending), pending.get(0), new Exception("Not enough funds")};
+		for (Object message : messages) {
+			ObjectNode expected = mapper.valueToTree(message);
+			expected.put("serverSig", SERVER_SIG);
+			// Compared as the client parses them, the tree keeps byte[] fields as binary rather than Base64 text
+			assertEquals(mapper.readTree(mapper.writeValueAsBytes(expected)), mapper.readTree(Application.signedJson(message, SERVER_SIG)));
+		}
+	}
+
+	@Test
+	public void appendsToAnyObject() throws Exception {
+		String[] objects = {"{}", "{ }", "{\"ping\":\"ping\"}", " {\"a\": [1, 2], \"b\": {}}\n"};
+		for (String json : objects) {
+			JsonNode signed = mapper.readTree(Application.appendServerSig(json.getBytes(StandardCharsets.UTF_8), SERVER_SIG));
+			ObjectNode expected = (ObjectNode) mapper.readTree(json);
+			expected.put("serverSig", SERVER_SIG);
+			assertEquals(json, expected, signed);
+		}
+	}
+
+	@Test
+	public void rejectsNonObjects() {
+		String[] notObjects = {"", "[]", "\"text\"", "null"};
+		for (String json : notObjects) {
+			try {
+				Application.appendServerSig(json.getBytes(StandardCharsets.UTF_8), SERVER_SIG);
+				fail(json);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	private static Account account(PublicKey key) {
+		return new Account(HDSCrypto.hashToString(key.getEncoded()), key.getEncoded(), 100);
+	}
+}
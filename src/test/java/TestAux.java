@@ -3,10 +3,16 @@ import server.HDSLib;
 import server.domain.Account;
 import server.domain.Transaction;
 
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.*;
 import java.util.Base64;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.stream.Stream;
 
 
 public class TestAux {
@@ -73,4 +79,19 @@ public class TestAux {
 	public static void receiveAmountHelper(String id, byte[]senderSig, PrivateKey privkey, String previousTransaction, HDSLib hdsLib) throws Exception{
 		receiveAmountHelper(id, senderSig, privkey, previousTransaction, HDSCrypto.dateToString(new Date()), hdsLib);
 	}
+
+	/* Removes what any of the ledger stores kept under the given name, like test0 */
+	public static void deleteLedger(String name) throws IOException {
+		Files.deleteIfExists(Paths.get("./db/" + name + ".mv.db"));
+		Files.deleteIfExists(Paths.get("./db/" + name + ".trace.db"));
+		Files.deleteIfExists(Paths.get("./db/" + name + ".wal"));
+		Path log = Paths.get("./db/" + name + "-log");
+		if (Files.exists(log)) {
+			try (Stream<Path> files = Files.walk(log)) {
+				for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+					Files.delete(file);
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,74 @@
+import org.junit.Test;
+import server.HDSCrypto;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class TimestampTest {
+	private static final int THREADS = 16;
+	private static final int ROUNDS = 20000;
+
+	@Test
+	public void matchesSimpleDateFormat() throws Exception {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss");
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			// Anywhere between 1970 and 2100, in whole seconds
+			Date date = new Date((random.nextLong() & Long.MAX_VALUE) % 4102444800L * 1000);
+			String timestamp = format.format(date);
+			assertEquals(timestamp, HDSCrypto.dateToString(date));
+			assertEquals(format.parse(timestamp), HDSCrypto.stringToDate(timestamp));
+		}
+	}
+
+	@Test
+	public void rejectsMalformedTimestamps() {
+		String[] malformed = {null, "", "2018.05.10.12.00", "2018-05-10.12.00.00", "2018.13.10.12.00.00",
+				"2018.02.29.12.00.00", "2018.05.10.24.00.00", "2018.05.10.12.60.00", "2018.05.1a.12.00.00", "0000.01.01.00.00.00"};
+		for (String timestamp : malformed) {
+			assertNull(timestamp, HDSCrypto.stringToDate(timestamp));
+			assertFalse(timestamp, HDSCrypto.validateTimestamp(new Date(), timestamp));
+		}
+		assertNotNull(HDSCrypto.stringToDate("2016.02.29.12.00.00"));
+	}
+
+	@Test
+	public void validateTimestampConcurrently() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		CyclicBarrier start = new CyclicBarrier(THREADS);
+		List<Future<Integer>> results = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			int seed = i;
+			results.add(pool.submit(() -> {
+				Random random = new Random(seed);
+				int failures = 0;
+				start.await();
+				for (int r = 0; r < ROUNDS; r++) {
+					Date now = new Date();
+					// Each thread uses different offsets, so a shared parser would mix them up
+					long offset = (random.nextInt(240) - 120) * 1000L;
+					String timestamp = HDSCrypto.dateToString(new Date(now.getTime() + offset));
+					boolean fresh = Math.abs(offset) < 59000;
+					boolean stale = Math.abs(offset) > 62000;
+					boolean valid = HDSCrypto.validateTimestamp(now, timestamp);
+					if ((fresh && !valid) || (stale && valid)) {
+						failures++;
+					}
+				}
+				return failures;
+			}));
+		}
+		int failures = 0;
+		for (Future<Integer> result : results) {
+			failures += result.get(60, TimeUnit.SECONDS);
+		}
+		pool.shutdown();
+		assertEquals(0, failures);
+	}
+}
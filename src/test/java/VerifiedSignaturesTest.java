@@ -0,0 +1,103 @@
+import client.VerifiedSignatures;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class VerifiedSignaturesTest {
+
+	@Test
+	public void othersWaitForTheClaim() throws Exception {
+		VerifiedSignatures verified = new VerifiedSignatures(null);
+		assertNull(verified.claim("tx", "fields"));
+
+		CompletableFuture<Boolean> other = verified.claim("tx", "fields");
+		assertNotNull(other);
+		assertFalse(other.isDone());
+
+		verified.release(Collections.singletonMap("tx", "fields"), true);
+		assertTrue(other.get(1, TimeUnit.SECONDS));
+		assertTrue(verified.contains("tx", "fields"));
+		assertTrue(verified.claim("tx", "fields").get(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void invalidClaimIsClaimedAgain() throws Exception {
+		VerifiedSignatures verified = new VerifiedSignatures(null);
+		assertNull(verified.claim("tx", "fields"));
+		CompletableFuture<Boolean> other = verified.claim("tx", "fields");
+
+		verified.release(Collections.singletonMap("tx", "fields"), false);
+		assertFalse(other.get(1, TimeUnit.SECONDS));
+		assertFalse(verified.contains("tx", "fields"));
+		assertNull(verified.claim("tx", "fields"));
+	}
+
+	@Test
+	public void otherFieldsAreClaimedSeparately() {
+		VerifiedSignatures verified = new VerifiedSignatures(null);
+		assertNull(verified.claim("tx", "fields"));
+		// Same signature returned with different fields, its answer is not the same
+		assertNull(verified.claim("tx", "forged"));
+	}
+
+	@Test
+	public void onlyOneOfManyClaims() throws Exception {
+		VerifiedSignatures verified = new VerifiedSignatures(null);
+		ExecutorService threads = Executors.newFixedThreadPool(8);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<CompletableFuture<Boolean>>> claims = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				claims.add(threads.submit(() -> {
+					start.await();
+					return verified.claim("tx", "fields");
+				}));
+			}
+			start.countDown();
+			int claimed = 0;
+			List<CompletableFuture<Boolean>> waiting = new ArrayList<>();
+			for (Future<CompletableFuture<Boolean>> claim : claims) {
+				CompletableFuture<Boolean> other = claim.get(5, TimeUnit.SECONDS);
+				if (other == null) {
+					claimed++;
+				} else {
+					waiting.add(other);
+				}
+			}
+			assertEquals(1, claimed);
+
+			verified.release(Collections.singletonMap("tx", "fields"), true);
+			for (CompletableFuture<Boolean> other : waiting) {
+				assertTrue(other.get(1, TimeUnit.SECONDS));
+			}
+		} finally {
+			threads.shutdownNow();
+		}
+	}
+
+	@Test
+	public void remembersAcrossSessions() throws Exception {
+		Path file = Files.createTempFile("hds", ".verified");
+		try {
+			VerifiedSignatures verified = new VerifiedSignatures(file);
+			assertNull(verified.claim("tx", "fields"));
+			verified.release(Collections.singletonMap("tx", "fields"), true);
+			assertNull(verified.claim("invalid", "fields"));
+			verified.release(Collections.singletonMap("invalid", "fields"), false);
+
+			VerifiedSignatures next = new VerifiedSignatures(file);
+			assertEquals(1, next.size());
+			assertTrue(next.contains("tx", "fields"));
+			assertFalse(next.contains("invalid", "fields"));
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
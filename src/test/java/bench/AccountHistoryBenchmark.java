@@ -0,0 +1,103 @@
+package bench;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.misc.TransactionManager;
+import org.openjdk.jmh.annotations.*;
+import server.HDSCrypto;
+import server.HDSLib;
+import server.domain.Account;
+import server.domain.Transaction;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Loads and audits an account with a long history.
+ * Run with: mvn test-compile exec:exec@bench -Dbench=AccountHistoryBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AccountHistoryBenchmark {
+	@Param("100000")
+	public int history;
+
+	private HDSLib hdsLib;
+	private String sourceKeyHash;
+
+	@Setup
+	public void setUp() throws Exception {
+		System.setProperty("com.j256.ormlite.logger.type", "LOCAL");
+		System.setProperty("com.j256.ormlite.logger.level", "ERROR");
+		deleteDatabase();
+
+		KeyPair source = HDSCrypto.generateKeypairEC();
+		KeyPair dest = HDSCrypto.generateKeypairEC();
+		hdsLib = HDSLib.getTestingInstance("h2");
+		Account from = register(source);
+		Account to = register(dest);
+		sourceKeyHash = from.getKeyHash();
+		HDSLib.forceReset();
+
+		// Signing every transaction would dominate the setup, the rows only need to look like a chain
+		JdbcConnectionSource connectionSource = new JdbcConnectionSource("jdbc:h2:./db/test0");
+		Dao<Transaction, String> transactions = DaoManager.createDao(connectionSource, Transaction.class);
+		Random random = new Random(42);
+		String timestamp = HDSCrypto.dateToString(new Date());
+		TransactionManager.callInTransaction(connectionSource, () -> {
+			String previous = null;
+			for (int i = 0; i < history; i++) {
+				byte[] sig = new byte[64];
+				random.nextBytes(sig);
+				Transaction t = new Transaction(i + "-" + sourceKeyHash, from, to, 1, timestamp, previous, sig, HDSCrypto.hashToString(sig));
+				t.setLast(i == history - 1);
+				transactions.create(t);
+				previous = t.getTransactionHash();
+			}
+			return null;
+		});
+		connectionSource.close();
+
+		hdsLib = HDSLib.getTestingInstance("h2");
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		HDSLib.forceReset();
+		deleteDatabase();
+	}
+
+	@Benchmark
+	public Account loadAccount() {
+		hdsLib.getAccountCache().invalidate(sourceKeyHash);
+		return hdsLib.getAccount(sourceKeyHash);
+	}
+
+	@Benchmark
+	public List<Transaction> audit() throws Exception {
+		return hdsLib.audit(sourceKeyHash);
+	}
+
+	private Account register(KeyPair keys) throws Exception {
+		String timestamp = HDSCrypto.dateToString(new Date());
+		Signature s = HDSCrypto.createSignature(keys.getPrivate());
+		s.update(timestamp.getBytes());
+		return hdsLib.register(keys.getPublic(), timestamp, s.sign());
+	}
+
+	private static void deleteDatabase() throws Exception {
+		Files.deleteIfExists(Paths.get("./db/test0.mv.db"));
+		Files.deleteIfExists(Paths.get("./db/test0.trace.db"));
+	}
+}
@@ -0,0 +1,62 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import server.HDSCrypto;
+
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Verifies a transfer-sized message and hashes a signature, once with a new engine per call
+ * (what HDSCrypto used to do) and once through HDSCrypto's per-thread instances.
+ * Run with: mvn test-compile exec:exec@bench -Dbench=CryptoBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CryptoBenchmark {
+	private KeyPair keyPair;
+	private byte[] message;
+	private byte[] sig;
+
+	@Setup
+	public void setUp() throws Exception {
+		keyPair = HDSCrypto.generateKeypairEC();
+		message = (HDSCrypto.hashToString(new byte[]{1}) + HDSCrypto.hashToString(new byte[]{2}) + "10000000" + "2018.05.10.12.00.00").getBytes();
+		Signature s = HDSCrypto.createSignature(keyPair.getPrivate());
+		s.update(message);
+		sig = s.sign();
+	}
+
+	@Benchmark
+	public boolean verifyNewInstance() throws Exception {
+		Signature s = Signature.getInstance("SHA256withECDSA");
+		s.initVerify(keyPair.getPublic());
+		s.update(message);
+		return s.verify(sig);
+	}
+
+	@Benchmark
+	public boolean verifyThreadLocal() throws Exception {
+		Signature s = HDSCrypto.verifySignature(keyPair.getPublic());
+		s.update(message);
+		return s.verify(sig);
+	}
+
+	@Benchmark
+	public String hashNewInstance() throws Exception {
+		MessageDigest digester = MessageDigest.getInstance("SHA-256");
+		return Base64.getEncoder().encodeToString(digester.digest(sig));
+	}
+
+	@Benchmark
+	public String hashThreadLocal() {
+		return HDSCrypto.hashToString(sig);
+	}
+}
@@ -0,0 +1,82 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import server.HDSCrypto;
+import server.LedgerStore;
+import server.domain.Account;
+import server.domain.ChainHead;
+import server.domain.Transaction;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/*
+ * Cost of appending a send to an account's chain, what sendAmount writes once it has validated it.
+ * h2 inserts the row and updates the previous head and the balance in place, log appends one record
+ * to its mapped segment. Both force every append to disk, with hds.log.sync=false the log doesn't.
+ * Run with: mvn test-compile exec:exec@bench -Dbench=LedgerAppendBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LedgerAppendBenchmark {
+	@Param({"h2", "log"})
+	public String store;
+
+	private LedgerStore ledger;
+	private Account source;
+	private Account dest;
+	private ChainHead head;
+	private int sequence;
+
+	@Setup
+	public void setUp() throws Exception {
+		deleteLedger();
+		ledger = LedgerStore.open(store, "bench");
+		source = new Account("source", new byte[]{1}, Integer.MAX_VALUE);
+		dest = new Account("dest", new byte[]{2}, 0);
+		ledger.createAccount(source);
+		ledger.createAccount(dest);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		ledger.close();
+		deleteLedger();
+	}
+
+	@Benchmark
+	public Transaction appendSend() throws Exception {
+		byte[] sig = ByteBuffer.allocate(64).putInt(sequence).array();
+		String previous = head == null ? null : head.getTransactionHash();
+		Transaction send = new Transaction(sequence + "-source", source, dest, 1, "2018.05.10.12.00.00", previous, sig, HDSCrypto.hashToString(sig));
+		send.setLast(true);
+		source.addAmount(-1);
+		ledger.appendSend(send, head, source);
+		head = new ChainHead(send);
+		sequence++;
+		return send;
+	}
+
+	private static void deleteLedger() throws Exception {
+		Files.deleteIfExists(Paths.get("./db/bench0.mv.db"));
+		Files.deleteIfExists(Paths.get("./db/bench0.trace.db"));
+		Files.deleteIfExists(Paths.get("./db/bench0.wal"));
+		Path log = Paths.get("./db/bench0-log");
+		if (Files.exists(log)) {
+			try (Stream<Path> files = Files.walk(log)) {
+				for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+					Files.delete(file);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.*;
+import server.Application;
+import server.HDSCrypto;
+import server.domain.Account;
+import server.domain.AccountState;
+import server.domain.Transaction;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Builds a signed check response for an account with a few pending transactions, once the way
+ * Application used to (new ObjectMapper, valueToTree, then serialized again by ctx.json) and once
+ * through the shared writer that splices serverSig into the serialized bytes.
+ * signTimestamp is the ECDSA signature every response carries, for scale.
+ * Run with: mvn test-compile exec:exec@bench -Dbench=ResponseSigningBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ResponseSigningBenchmark {
+	@Param({"0", "10"})
+	public int pending;
+
+	private KeyPair keyPair;
+	private AccountState state;
+	private String timestamp;
+	private String serverSig;
+
+	@Setup
+	public void setUp() throws Exception {
+		keyPair = HDSCrypto.generateKeypairEC();
+		Account from = account(HDSCrypto.generateKeypairEC().getPublic());
+		Account to = account(keyPair.getPublic());
+		List<Transaction> transactions = new ArrayList<>();
+		for (int i = 0; i < pending; i++) {
+			transactions.add(new Transaction(i + "-" + from.getKeyHash(), from, to, 1, "2018.05.10.12.00.00", "000000", new byte[64], HDSCrypto.hashToString(new byte[64])));
+		}
+		state = new AccountState(to.getKeyHash(), 100, transactions);
+		timestamp = "2018.05.10.12.00.00";
+		serverSig = signTimestamp();
+	}
+
+	@Benchmark
+	public byte[] treeNewMapper() throws Exception {
+		ObjectMapper mapper = new ObjectMapper();
+		ObjectNode msg = mapper.valueToTree(state);
+		msg.put("serverSig", serverSig);
+		return new ObjectMapper().writeValueAsBytes(msg);
+	}
+
+	@Benchmark
+	public byte[] spliceSharedWriter() throws Exception {
+		return Application.signedJson(state, serverSig);
+	}
+
+	@Benchmark
+	public String signTimestamp() throws Exception {
+		Signature s = HDSCrypto.createSignature(keyPair.getPrivate());
+		s.update(timestamp.getBytes());
+		return Base64.getEncoder().encodeToString(s.sign());
+	}
+
+	private static Account account(PublicKey key) {
+		return new Account(HDSCrypto.hashToString(key.getEncoded()), key.getEncoded(), 100);
+	}
+}